@@ -0,0 +1,145 @@
+package fr.upem.net.udp;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encoder and decoder of the BetterUpperCase packets for one charset name:
+ * - the size (as a Big Endian int) of the charsetName encoded in ASCII<br/>
+ * - the bytes encoding this charsetName in ASCII<br/>
+ * - the bytes encoding the message in this charset.<br/>
+ * <p>
+ * A codec keeps its Charset, a CharsetEncoder, a CharsetDecoder and the encoded prefix (size and
+ * name) of its packets, so encoding or decoding a packet does not look up the charset nor
+ * allocate any buffer. The codecs are created once per charset name and shared: see
+ * {@link #forName(String)} and {@link #forEncodedName(ByteBuffer)}. The names come from the
+ * packets of the peers, so at most {@value #MAX_CACHED_NAMES} of them are cached and the codecs
+ * of the other names are created on each call.
+ * <p>
+ * This class is thread-safe.
+ */
+public class BetterUpperCaseCodec {
+
+	private static final Charset ASCII_CHARSET = StandardCharsets.US_ASCII;
+	private static final int MAX_CACHED_NAMES = 64;
+	private static final ConcurrentHashMap<String, BetterUpperCaseCodec> BY_NAME = new ConcurrentHashMap<>();
+	// same codecs, by the bytes of their name in ASCII, to find the codec of a packet without decoding the name
+	private static final ConcurrentHashMap<ByteBuffer, BetterUpperCaseCodec> BY_ENCODED_NAME = new ConcurrentHashMap<>();
+
+	private final Charset charset;
+	private final CharsetEncoder encoder;
+	private final CharsetDecoder decoder;
+	private final byte[] prefix;
+
+	private BetterUpperCaseCodec(String charsetName, Charset charset) {
+		this.charset = charset;
+		// same behavior as Charset.encode and Charset.decode
+		this.encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		var name = charsetName.getBytes(ASCII_CHARSET);
+		this.prefix = ByteBuffer.allocate(Integer.BYTES + name.length).putInt(name.length).put(name).array();
+	}
+
+	/**
+	 * Returns the codec of the charset named charsetName, created on the first call if there is
+	 * still room in the cache, and on each call otherwise.
+	 *
+	 * @param charsetName the name of the charset, written in the packets
+	 * @return the codec, or an empty Optional if the charset is not supported
+	 */
+	public static Optional<BetterUpperCaseCodec> forName(String charsetName) {
+		var codec = BY_NAME.get(charsetName);
+		if (codec != null) {
+			return Optional.of(codec);
+		}
+		Charset charset;
+		try {
+			if (charsetName.isEmpty() || !Charset.isSupported(charsetName)) {
+				return Optional.empty();
+			}
+			charset = Charset.forName(charsetName);
+		} catch (IllegalCharsetNameException e) {
+			return Optional.empty();
+		}
+		if (BY_NAME.size() >= MAX_CACHED_NAMES) {
+			// a few more names can be cached by concurrent calls, but the maps stay bounded
+			return Optional.of(new BetterUpperCaseCodec(charsetName, charset));
+		}
+		codec = BY_NAME.computeIfAbsent(charsetName, name -> new BetterUpperCaseCodec(name, charset));
+		BY_ENCODED_NAME.putIfAbsent(ByteBuffer.wrap(codec.prefix, Integer.BYTES, codec.prefix.length - Integer.BYTES).slice(), codec);
+		return Optional.of(codec);
+	}
+
+	/**
+	 * Returns the codec of the charset whose name, in ASCII, is the remaining bytes of encodedName.
+	 * The name is only decoded the first time it is seen. The position of encodedName is unchanged.
+	 *
+	 * @return the codec, or an empty Optional if the charset is not supported
+	 */
+	public static Optional<BetterUpperCaseCodec> forEncodedName(ByteBuffer encodedName) {
+		// equals and hashCode of a ByteBuffer only depend on its remaining bytes
+		var codec = BY_ENCODED_NAME.get(encodedName);
+		if (codec != null) {
+			return Optional.of(codec);
+		}
+		return forName(ASCII_CHARSET.decode(encodedName.duplicate()).toString());
+	}
+
+	public Charset charset() {
+		return charset;
+	}
+
+	/**
+	 * Writes the packet of msg in dst, in write mode. Nothing is written if the packet does not
+	 * fit in the remaining bytes of dst, or in maxSize bytes.
+	 *
+	 * @return true if the packet was written
+	 */
+	public boolean encode(CharSequence msg, ByteBuffer dst, int maxSize) {
+		var start = dst.position();
+		var limit = dst.limit();
+		if (prefix.length > Math.min(dst.remaining(), maxSize)) {
+			return false;
+		}
+		dst.put(prefix);
+		dst.limit((int) Math.min(limit, (long) start + maxSize));
+		try {
+			synchronized (encoder) {
+				encoder.reset();
+				if (encoder.encode(CharBuffer.wrap(msg), dst, true).isOverflow()
+						|| encoder.flush(dst).isOverflow()) {
+					dst.position(start);
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			dst.limit(limit);
+		}
+	}
+
+	/**
+	 * Decodes the remaining bytes of src, the message of a packet after its charset name, and
+	 * appends the chars to dst, in write mode.
+	 *
+	 * @return false if dst is too small for the message, the content of dst is then unspecified
+	 */
+	public boolean decode(ByteBuffer src, CharBuffer dst) {
+		synchronized (decoder) {
+			decoder.reset();
+			return !decoder.decode(src, dst, true).isOverflow() && !decoder.flush(dst).isOverflow();
+		}
+	}
+}
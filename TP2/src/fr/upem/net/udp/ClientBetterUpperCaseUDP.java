@@ -6,6 +6,7 @@ import java.net.SocketAddress;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
@@ -19,8 +20,6 @@ public class ClientBetterUpperCaseUDP {
 	private static final Logger logger = Logger.getLogger(ClientBetterUpperCaseUDP.class.getName());
 	private static final int MAX_PACKET_SIZE = 1024;
 
-	private static Charset ASCII_CHARSET = StandardCharsets.US_ASCII; //Charset.forName("US-ASCII");
-
 	/**
 	 * Creates and returns an Optional containing a String message represented by the ByteBuffer buffer,
 	 * encoded in the following representation:
@@ -35,24 +34,37 @@ public class ClientBetterUpperCaseUDP {
 	 */
 	public static Optional<String> decodeMessage(ByteBuffer buffer) {
 		buffer.flip();
+		return readCodec(buffer).map(codec -> codec.charset().decode(buffer).toString());
+	}
+
+	/**
+	 * Same as {@link #decodeMessage(ByteBuffer)} but appends the message to dst, in write mode,
+	 * instead of creating a String. The decoder of the charset is reused from a packet to another.
+	 *
+	 * @param buffer a ByteBuffer in write mode containing the representation of an encoded String message
+	 * @param dst the CharBuffer in write mode receiving the message
+	 * @return false if the buffer cannot be decoded or if dst is too small for the message
+	 */
+	public static boolean decodeMessage(ByteBuffer buffer, CharBuffer dst) {
+		buffer.flip();
+		var codec = readCodec(buffer);
+		return codec.isPresent() && codec.get().decode(buffer, dst);
+	}
+
+	/**
+	 * Reads the charset name of a packet in read mode and leaves the position at the start of the message.
+	 */
+	private static Optional<BetterUpperCaseCodec> readCodec(ByteBuffer buffer) {
 		if(buffer.remaining()<4){
 			return Optional.empty();
 		}
 		var charsetSize = buffer.getInt();
-		if(charsetSize < 0){
+		if(charsetSize < 0 || buffer.remaining() < charsetSize){
 			return Optional.empty();
 		}
-		var initialBufferSize = buffer.limit();
-		if(buffer.limit() < charsetSize+4){
-			return Optional.empty();
-		}
-		buffer.limit(charsetSize + 4);
-		var charsetName = ASCII_CHARSET.decode(buffer).toString();
-		if(!Charset.isSupported(charsetName) || charsetName.isEmpty()){
-			return Optional.empty();
-		}
-		buffer.limit(initialBufferSize);
-		return Optional.of(Charset.forName(charsetName).decode(buffer).toString());
+		var codec = BetterUpperCaseCodec.forEncodedName(buffer.slice(buffer.position(), charsetSize));
+		buffer.position(buffer.position() + charsetSize);
+		return codec;
 	}
 
 	/**
@@ -73,22 +85,28 @@ public class ClientBetterUpperCaseUDP {
 	 */
 	public static Optional<ByteBuffer> encodeMessage(String msg, String charsetName) {
 		ByteBuffer bb = ByteBuffer.allocate(MAX_PACKET_SIZE);
-		if(!Charset.isSupported(charsetName)){
-			return Optional.empty();
-		}
-		var encodedMsg = Charset.forName(charsetName).encode(msg);
-		var encodedCharset = ASCII_CHARSET.encode(charsetName);
-		var charsetSize = encodedCharset.limit();
-		var totalSize = 4 + charsetSize + encodedMsg.limit();
-		bb.putInt(charsetSize);
-		bb.put(ASCII_CHARSET.encode(charsetName));
-		if(totalSize > MAX_PACKET_SIZE){
+		if(!encodeMessage(msg, charsetName, bb)){
 			return Optional.empty();
 		}
-		bb.put(Charset.forName(charsetName).encode(msg));
 		return Optional.of(bb);
 	}
 
+	/**
+	 * Same as {@link #encodeMessage(String, String)} but writes the representation of msg in dst,
+	 * in write mode, instead of a new ByteBuffer. The charset, its encoder and the encoded
+	 * charsetName are reused from a message to another.
+	 *
+	 * @param msg the String to encode
+	 * @param charsetName the name of the Charset to encode the String msg
+	 * @param dst the ByteBuffer in write mode receiving the representation of msg
+	 * @return false, with nothing written in dst, if the charset is not supported or if the
+	 *         representation does not fit in dst or in MAX_PACKET_SIZE bytes
+	 */
+	public static boolean encodeMessage(String msg, String charsetName, ByteBuffer dst) {
+		var codec = BetterUpperCaseCodec.forName(charsetName);
+		return codec.isPresent() && codec.get().encode(msg, dst, MAX_PACKET_SIZE);
+	}
+
 	public static void usage() {
 		System.out.println("Usage : ClientBetterUpperCaseUDP host port charsetName");
 	}
@@ -107,26 +125,30 @@ public class ClientBetterUpperCaseUDP {
 		var dest = new InetSocketAddress(host, port);
 		// buff to receive messages
 		var buff = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+		var packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+		var received = CharBuffer.allocate(MAX_PACKET_SIZE);
 
 		try(var scan = new Scanner(System.in);
 				var dc = DatagramChannel.open()){
 			while (scan.hasNextLine()) {
 				var line = scan.nextLine();
 				
-				var enc = encodeMessage(line, charsetName);
-				if (enc.isEmpty()) {
+				packet.clear();
+				if (!encodeMessage(line, charsetName, packet)) {
 					System.out.println("Line is too long to be sent using the protocol BetterUpperCase");
 					continue;
 				}
-				var packet = enc.get();
 				packet.flip();
 				dc.send(packet, dest);
 				buff.clear();
 				dc.receive(buff);
-				
-				decodeMessage(buff).ifPresentOrElse(
-						(str) -> System.out.println("Received: " + str), 
-						() -> System.out.println("Received an invalid paquet"));
+
+				received.clear();
+				if (decodeMessage(buff, received)) {
+					System.out.println("Received: " + received.flip());
+				} else {
+					System.out.println("Received an invalid paquet");
+				}
 			}
 		}
 	}
@@ -3,6 +3,7 @@ package fr.upem.net.udp;
 import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Optional;
 
 import static fr.upem.net.udp.ClientBetterUpperCaseUDP.decodeMessage;
@@ -123,4 +124,78 @@ public class ClientBetterUpperCaseUDPTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void encodeMessageInBuffer() {
+        ByteBuffer bb = ByteBuffer.allocate(100);
+        bb.position(3);
+        assertTrue(encodeMessage("a$$$!!\u00e9", "latin1", bb));
+        bb.flip().position(3);
+        assertEquals("000000066C6174696E31612424242121E9", getHexaString(bb));
+    }
+
+    @Test
+    public void encodeMessageInBufferReused() {
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        for (int i = 0; i < 3; i++) {
+            bb.clear();
+            assertTrue(encodeMessage("a\u20AC", "UTF-8", bb));
+            assertEquals("000000055554462D3861E282AC", getHexaString(bb.flip()));
+        }
+    }
+
+    @Test
+    public void encodeMessageInBufferTooLong() {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<500;i++){
+            sb.append("\u20AC");
+        }
+        ByteBuffer bb = ByteBuffer.allocate(4096);
+        assertFalse(encodeMessage(sb.toString(), "UTF-8", bb));
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void encodeMessageInBufferTooSmall() {
+        ByteBuffer bb = ByteBuffer.allocate(12);
+        assertFalse(encodeMessage("a$$$!!\u00e9", "latin1", bb));
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void encodeMessageInBufferUnsupportedCharset() {
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        assertFalse(encodeMessage("a", "tatin1", bb));
+        assertFalse(encodeMessage("a", "not a charset", bb));
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void decodeMessageInCharBuffer() {
+        ByteBuffer bb = byteBufferFromHexaString("000000055554462D3861E282AC");
+        bb.compact();
+        CharBuffer cb = CharBuffer.allocate(1024);
+        assertTrue(decodeMessage(bb, cb));
+        assertEquals("a\u20AC", cb.flip().toString());
+    }
+
+    @Test
+    public void decodeMessageInCharBufferTooSmall() {
+        ByteBuffer bb = byteBufferFromHexaString("000000066C6174696E31612424242121E9");
+        bb.compact();
+        assertFalse(decodeMessage(bb, CharBuffer.allocate(3)));
+    }
+
+    @Test
+    public void decodeMessageInCharBufferWrongEncoding() {
+        ByteBuffer bb = byteBufferFromHexaString("00000006746174696E31612424242121E9");
+        bb.compact();
+        assertFalse(decodeMessage(bb, CharBuffer.allocate(1024)));
+        ByteBuffer bb2 = byteBufferFromHexaString("000000FF6C6174696E31612424242121E9");
+        bb2.compact();
+        assertFalse(decodeMessage(bb2, CharBuffer.allocate(1024)));
+        ByteBuffer bb3 = byteBufferFromHexaString("00000002FFFE61");
+        bb3.compact();
+        assertFalse(decodeMessage(bb3, CharBuffer.allocate(1024)));
+    }
+
+}
@@ -10,9 +10,12 @@ import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
@@ -30,15 +33,114 @@ public class ClientUpperCaseUDPFile {
 
     private final static Charset UTF8 = StandardCharsets.UTF_8;
     private final static int BUFFER_SIZE = 1024;
+    // the largest payload of a UDP datagram
+    private final static int MAX_LINE_SIZE = 65_507;
+    private final static int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private final static byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(UTF8);
     private static final Logger logger =
             Logger.getLogger(ClientUpperCaseUDPFile.class.getName());
 
     private static void usage() {
-        System.out.println("Usage : ClientUpperCaseUDPFile in-filename out-filename timeout host port ");
+        System.out.println("Usage : ClientUpperCaseUDPFile in-filename out-filename timeout host port [-stream]");
+    }
+
+    /**
+     * Same as main without -stream, but the lines are read one at a time with a {@link LineReader}
+     * and each reply is appended to the output file as soon as it is received, so the memory
+     * used is bounded by a few buffers whatever the size of the file. The lines are sent as they
+     * are encoded in the file and the replies are written as received, without being decoded.
+     * <p>
+     * The replies do not tell which line they answer, so there is only one line in flight, as
+     * in main.
+     */
+    private static void streamFile(Path inPath, Path outPath, int timeout, SocketAddress dest) throws IOException {
+        try (var in = FileChannel.open(inPath, StandardOpenOption.READ);
+             var out = FileChannel.open(outPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING);
+             var dc = DatagramChannel.open();
+             var selector = Selector.open()) {
+            // not connected: a connected DatagramChannel does not send the empty datagram of an
+            // empty line
+            dc.configureBlocking(false);
+            dc.register(selector, SelectionKey.OP_READ);
+            var reader = new LineReader(in, MAX_LINE_SIZE);
+            var rcvBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            var outBuffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+            // the replies have no id, a timeout below the one given would take late replies for lost ones
+            var rtt = new RttEstimator(timeout, timeout);
+            ByteBuffer line;
+            while ((line = reader.nextLine()) != null) {
+                var start = line.position();
+                var sendTime = System.nanoTime();
+                // a datagram that does not fit in the send buffer is lost, and retransmitted below
+                dc.send(line, dest);
+                var retransmitted = false;
+                while (!receive(dc, selector, rcvBuffer, rtt.getTimeout())) {
+                    rtt.backoff();
+                    retransmitted = true;
+                    line.position(start);
+                    dc.send(line, dest);
+                }
+                if (!retransmitted) {
+                    // Karn's rule : the reply of a retransmitted line cannot be timed
+                    rtt.addSample(System.nanoTime() - sendTime);
+                }
+                rcvBuffer.flip();
+                if (retransmitted) {
+                    // the other replies to this line would be taken for the replies to the next ones
+                    discardPending(dc);
+                }
+                if (outBuffer.remaining() < rcvBuffer.remaining() + LINE_SEPARATOR.length) {
+                    flush(out, outBuffer);
+                }
+                outBuffer.put(rcvBuffer).put(LINE_SEPARATOR);
+            }
+            flush(out, outBuffer);
+        }
+    }
+
+    /**
+     * Waits at most timeout milliseconds for a reply and receives it in buff.
+     *
+     * @return false if no reply was received
+     */
+    private static boolean receive(DatagramChannel dc, Selector selector, ByteBuffer buff, long timeout) throws IOException {
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (;;) {
+            buff.clear();
+            if (dc.receive(buff) != null) {
+                return true;
+            }
+            var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static void discardPending(DatagramChannel dc) throws IOException {
+        var buff = ByteBuffer.allocate(BUFFER_SIZE);
+        while (dc.receive(buff) != null) {
+            buff.clear();
+        }
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buff) throws IOException {
+        buff.flip();
+        while (buff.hasRemaining()) {
+            out.write(buff);
+        }
+        buff.clear();
     }
 
 
     public static void main(String[] args) throws IOException, InterruptedException {
+        var streaming = args.length > 0 && args[args.length - 1].equals("-stream");
+        if (streaming) {
+            args = Arrays.copyOf(args, args.length - 1);
+        }
         if (args.length != 5) {
             usage();
             return;
@@ -50,6 +152,10 @@ public class ClientUpperCaseUDPFile {
         String host = args[3];
         int port = Integer.valueOf(args[4]);
         SocketAddress dest = new InetSocketAddress(host, port);
+        if (streaming) {
+            streamFile(Paths.get(inFilename), Paths.get(outFilename), timeout, dest);
+            return;
+        }
         final BlockingQueue<String> queue = new SynchronousQueue<>();
 
         //Read all lines of inFilename opened in UTF-8
@@ -83,16 +189,29 @@ public class ClientUpperCaseUDPFile {
 
             });
             listener.start();
+            // the replies have no id, a timeout below the one given would take late replies for lost ones
+            var rtt = new RttEstimator(timeout, timeout);
             for (var line : lines) {
                 var bb = UTF8.encode(line);
+                var sendTime = System.nanoTime();
                 dc.send(bb, dest);
+                var retransmitted = false;
                 String msg;
-                while ((msg = queue.poll(timeout, TimeUnit.MILLISECONDS) )== null) {
-
+                while ((msg = queue.poll(rtt.getTimeout(), TimeUnit.MILLISECONDS) )== null) {
+                    rtt.backoff();
+                    retransmitted = true;
                     bb.flip();
                     dc.send(bb, dest);
 
 
+                }
+                if (!retransmitted) {
+                    // Karn's rule : the reply of a retransmitted line cannot be timed
+                    rtt.addSample(System.nanoTime() - sendTime);
+                } else {
+                    // the other replies to this line would be taken for the replies to the next ones
+                    while (queue.poll() != null) {
+                    }
                 }
                 upperCaseLines.add(msg);
 
@@ -14,6 +14,9 @@ import java.util.logging.Logger;
 
 public class ClientUpperCaseUDPRetry {
     public static final int BUFFER_SIZE = 1024;
+    // timeout in milliseconds used until the round-trip time to the server is known, and the
+    // smallest one since the replies have no id: a late reply must not be taken for a lost one
+    private static final int TIMEOUT = 1000;
     private static final Logger logger =
             Logger.getLogger(fr.upem.net.udp.ClientUpperCaseUDPTimeout.class.getName());
     private static void usage(){
@@ -51,20 +54,30 @@ public class ClientUpperCaseUDPRetry {
                     }
                 });
                 listener.start();
+                var rtt = new RttEstimator(TIMEOUT, TIMEOUT);
                 while(scan.hasNextLine()){
                     String line = scan.nextLine();
                     var byteBuff = cs.encode(line);
+                    var sendTime = System.nanoTime();
                     dc.send(byteBuff, server);
-                    var msg = queue.poll(1000, TimeUnit.MILLISECONDS);
-                    if(msg == null){
+                    var retransmitted = false;
+                    String msg;
+                    while ((msg = queue.poll(rtt.getTimeout(), TimeUnit.MILLISECONDS)) == null) {
+                        rtt.backoff();
+                        retransmitted = true;
+                        System.out.println("The server did not reply, resending a request...");
                         byteBuff.flip();
                         dc.send(byteBuff, server);
-                        queue.poll(1000, TimeUnit.MILLISECONDS);
-                        System.out.println("The server did not reply, resending a request...");
                     }
-                    else{
-                        System.out.println(msg);
+                    if (!retransmitted) {
+                        // Karn's rule : the reply of a retransmitted line cannot be timed
+                        rtt.addSample(System.nanoTime() - sendTime);
+                    } else {
+                        // the other replies to this line would be taken for the replies to the next ones
+                        while (queue.poll() != null) {
+                        }
                     }
+                    System.out.println(msg);
                 }
             }
 
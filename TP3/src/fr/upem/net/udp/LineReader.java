@@ -0,0 +1,109 @@
+package fr.upem.net.udp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the lines of a file encoded in UTF-8 through a FileChannel, one at a time, so that the
+ * memory used does not depend on the size of the file.
+ * <p>
+ * The lines are not decoded: each line is returned as the bytes of its encoding, a view of the
+ * buffer of the reader. In UTF-8 the bytes of '\n' and '\r' never appear inside the encoding of
+ * another char, so the lines are found without decoding, and they end with "\n", "\r" or
+ * "\r\n" as for {@link java.io.BufferedReader#readLine()}. Each line is still checked by a
+ * reusable CharsetDecoder, so that an invalid file throws a MalformedInputException as with
+ * {@link java.nio.file.Files#readAllLines(java.nio.file.Path)}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class LineReader {
+
+    private final FileChannel fc;
+    // the bytes read from the file and not returned yet, in read mode
+    private final ByteBuffer buff;
+    private final ByteBuffer line;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private final CharBuffer chars;
+    private boolean endOfFile;
+    // true if the last line ended with '\r', a '\n' following it is part of its terminator
+    private boolean skipLineFeed;
+
+    /**
+     * @param fc the channel of the file, read from its current position
+     * @param maxLineSize the maximum size of a line in bytes, without its terminator
+     */
+    public LineReader(FileChannel fc, int maxLineSize) {
+        if (maxLineSize <= 0) {
+            throw new IllegalArgumentException("maxLineSize must be positive");
+        }
+        this.fc = fc;
+        // one more byte for the terminator, which must be seen to know that the line is complete
+        this.buff = ByteBuffer.allocateDirect(maxLineSize + 1);
+        buff.flip();
+        this.line = buff.duplicate();
+        // a byte never decodes to more than one char in UTF-8
+        this.chars = CharBuffer.allocate(maxLineSize);
+    }
+
+    /**
+     * Returns the next line, without its terminator. The returned buffer is only valid until the
+     * next call and must not be modified.
+     *
+     * @return the bytes of the line in read mode, or null at the end of the file
+     * @throws java.nio.charset.MalformedInputException if the line is not valid UTF-8
+     * @throws IOException if the line is longer than maxLineSize
+     */
+    public ByteBuffer nextLine() throws IOException {
+        var scan = buff.position();
+        for (;;) {
+            if (skipLineFeed && buff.hasRemaining()) {
+                skipLineFeed = false;
+                if (buff.get(buff.position()) == '\n') {
+                    buff.position(buff.position() + 1);
+                }
+                scan = buff.position();
+            }
+            for (; scan < buff.limit(); scan++) {
+                var b = buff.get(scan);
+                if (b == '\n' || b == '\r') {
+                    skipLineFeed = b == '\r';
+                    return takeLine(scan, scan + 1);
+                }
+            }
+            if (endOfFile) {
+                // the last line may have no terminator
+                return buff.hasRemaining() ? takeLine(buff.limit(), buff.limit()) : null;
+            }
+            var scanned = scan - buff.position();
+            buff.compact();
+            if (!buff.hasRemaining()) {
+                throw new IOException("Line longer than " + (buff.capacity() - 1) + " bytes");
+            }
+            endOfFile = fc.read(buff) == -1;
+            buff.flip();
+            scan = scanned;
+        }
+    }
+
+    /**
+     * Returns the bytes from the position of buff to end, and moves the position of buff to next.
+     */
+    private ByteBuffer takeLine(int end, int next) throws IOException {
+        var start = buff.position();
+        line.clear();
+        line.position(start).limit(end);
+        buff.position(next);
+        decoder.reset();
+        chars.clear();
+        var result = decoder.decode(line, chars, true);
+        if (result.isError()) {
+            result.throwException();
+        }
+        line.position(start);
+        return line;
+    }
+}
@@ -3,115 +3,329 @@ package fr.upem.net.udp;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousCloseException;
-import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Sends all the lines at once, then sends again the lines without reply after each timeout.
+ * <p>
+ * With -channels K, the lines are split in K ranges of consecutive lines, each one sent by its
+ * own channel, with its own sender and receiver threads, its own timeout and its own log of
+ * the replies. A single channel is limited by the work of the kernel for one socket on one
+ * core; the K channels have distinct source ports, so they are also spread over the workers of
+ * a server whose sockets use SO_REUSEPORT. If a shard fails, the other ones are stopped at once
+ * and the failure is thrown by {@link #launch()}.
+ */
 public class ClientIdUpperCaseUDPBurst {
 
     private static Logger logger = Logger.getLogger(ClientIdUpperCaseUDPBurst.class.getName());
     private static final Charset UTF8 = StandardCharsets.UTF_8;
     private static final int BUFFER_SIZE = 1024;
-    private final List<String> lines;
+    // the largest payload of a UDP datagram, less the id
+    private static final int MAX_LINE_SIZE = 65_507 - Long.BYTES;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(UTF8);
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    // each channel has two threads
+    private static final int MAX_CHANNELS = 64;
+    // the packets of the lines, encoded once for all the rounds
+    private final PacketArena packets;
     private final int nbLines;
     private final String[] upperCaseLines; //
+    // with -mmap, the lines are read from the mapping and the replies kept in temporary files
+    private final MappedLines mappedLines;
     private final int timeout;
     private final String outFilename;
     private final InetSocketAddress serverAddress;
-    private final DatagramChannel dc;
-    private final AnswersLog answersLog;         // Thread-safe structure keeping track of missing responses
+    private final Shard[] shards;
+    // the indexes of the shards whose receiver has stopped, successfully or not
+    private final BlockingQueue<Integer> stoppedShards = new LinkedBlockingQueue<>();
 
     public static void usage() {
-        System.out.println("Usage : ClientIdUpperCaseUDPBurst in-filename out-filename timeout host port ");
+        System.out.println("Usage : ClientIdUpperCaseUDPBurst in-filename out-filename timeout host port [-mmap] [-channels K]");
     }
 
     public ClientIdUpperCaseUDPBurst(List<String> lines, int timeout, InetSocketAddress serverAddress, String outFilename) throws IOException {
-        this.lines = lines;
-        this.nbLines = lines.size();
+        this(lines, timeout, serverAddress, outFilename, 1);
+    }
+
+    /**
+     * @param channels the number of channels sending the lines in parallel
+     */
+    public ClientIdUpperCaseUDPBurst(List<String> lines, int timeout, InetSocketAddress serverAddress, String outFilename,
+                                     int channels) throws IOException {
+        this(lines, null, lines.size(), timeout, serverAddress, outFilename, channels);
+    }
+
+    /**
+     * Creates a client that sends the lines directly from the mapping of the input file, so
+     * that sending a line again does not copy it, and keeps the replies in temporary files
+     * next to the output file. No String is created, which lets the client send files of tens
+     * of millions of lines.
+     */
+    public ClientIdUpperCaseUDPBurst(MappedLines lines, int timeout, InetSocketAddress serverAddress, String outFilename) throws IOException {
+        this(lines, timeout, serverAddress, outFilename, 1);
+    }
+
+    /**
+     * Same as {@link #ClientIdUpperCaseUDPBurst(MappedLines, int, InetSocketAddress, String)}
+     * with several channels.
+     *
+     * @param channels the number of channels sending the lines in parallel
+     */
+    public ClientIdUpperCaseUDPBurst(MappedLines lines, int timeout, InetSocketAddress serverAddress, String outFilename,
+                                     int channels) throws IOException {
+        this(null, lines, lines.size(), timeout, serverAddress, outFilename, channels);
+    }
+
+    private ClientIdUpperCaseUDPBurst(List<String> lines, MappedLines mappedLines, int nbLines, int timeout,
+                                      InetSocketAddress serverAddress, String outFilename, int channels) throws IOException {
+        if (channels <= 0 || channels > MAX_CHANNELS) {
+            throw new IllegalArgumentException("channels must be between 1 and " + MAX_CHANNELS);
+        }
+        this.packets = lines == null ? null : PacketArena.encode(lines);
+        this.mappedLines = mappedLines;
+        this.nbLines = nbLines;
         this.timeout = timeout;
         this.outFilename = outFilename;
         this.serverAddress = serverAddress;
-        this.dc = DatagramChannel.open();
-        dc.bind(null);
-        this.upperCaseLines = new String[nbLines];
-        this.answersLog = new AnswersLog(nbLines);
+        this.upperCaseLines = mappedLines == null ? new String[nbLines] : null;
+        // no channel without lines
+        this.shards = new Shard[Math.max(1, Math.min(channels, nbLines))];
+        for (var i = 0; i < shards.length; i++) {
+            var first = (int) ((long) nbLines * i / shards.length);
+            var end = (int) ((long) nbLines * (i + 1) / shards.length);
+            shards[i] = new Shard(i, first, end - first);
+        }
     }
 
-    private void senderThreadRun() {
-        var sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-        try {
-            while (!Thread.currentThread().isInterrupted()) {
+    /**
+     * The lines from first to first + size excluded, sent and received on their own channel.
+     * The ids of the lines in the packets are the ids in the whole file, so the server sees no
+     * difference.
+     */
+    private final class Shard {
+        private final int index;
+        private final int first;
+        private final int size;
+        private final DatagramChannel dc;
+        private final AnswersLog answersLog;         // Thread-safe structure keeping track of missing responses
+        private final RttEstimator rtt;
+        // time of the first emission of each line, or NOT_TIMED once it has been sent again (Karn's rule)
+        private final AtomicLongArray sendTimes;
+        private final SpilledReplies replies;
+        // true if a new reply was received since the beginning of the current round
+        private volatile boolean progress;
+        private volatile IOException failure;
+
+        Shard(int index, int first, int size) throws IOException {
+            this.index = index;
+            this.first = first;
+            this.size = size;
+            this.dc = DatagramChannel.open();
+            dc.bind(null);
+            if (mappedLines == null) {
+                this.replies = null;
+            } else {
+                // connected for the gathering writes of the id and the line
+                dc.connect(serverAddress);
+                this.replies = new SpilledReplies(size, Path.of(outFilename).toAbsolutePath().getParent());
+            }
+            this.answersLog = new AnswersLog(size);
+            this.rtt = new RttEstimator(timeout);
+            this.sendTimes = new AtomicLongArray(size);
+        }
 
-                for (var i = 0; i < nbLines; i++) {
-                    if (!answersLog.isSent(i)) {
-                        sendBuffer.clear();
-                        sendBuffer.putLong(i);
-                        sendBuffer.put(UTF8.encode(lines.get(i)));
+        private void senderThreadRun() {
+            var packet = new ByteBuffer[]{ByteBuffer.allocateDirect(Long.BYTES), null};
+            try {
+                var firstRound = true;
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (!firstRound && !progress) {
+                        // the timeout expired without any new reply
+                        rtt.backoff();
+                    }
+                    progress = false;
+                    var failures = 0;
+                    IOException lastFailure = null;
+                    for (var i = answersLog.nextMissing(0); i >= 0; i = answersLog.nextMissing(i + 1)) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            logger.info("Sender has been interrupted");
+                            return;
+                        }
+                        sendTimes.set(i, firstRound ? System.nanoTime() : NOT_TIMED);
                         try {
-                            sendBuffer.flip();
-                            dc.send(sendBuffer, serverAddress);
-                        } catch (ClosedByInterruptException e) {
-                            logger.info("Listener : ClosedByInterrupt");
-                        } catch (AsynchronousCloseException e) {
-                            logger.info("Listener : AsynchronousClose");
+                            sendLine(first + i, packet);
+                        } catch (ClosedChannelException e) {
+                            // the shard is stopped, by an interruption or because another one failed
+                            logger.info("Sender : channel closed");
+                            return;
                         } catch (IOException e) {
-                            logger.log(Level.SEVERE, "Sender : IOException");
+                            // the line is sent again in the next round
+                            failures++;
+                            lastFailure = e;
                         }
                     }
+                    if (failures != 0) {
+                        logger.log(Level.WARNING, "Sender : " + failures + " lines not sent", lastFailure);
+                    }
+
+                    firstRound = false;
+                    Thread.sleep(rtt.getTimeout());
                 }
+            } catch (InterruptedException e) {
+                logger.info("Sender has been interrupted");
+            }
+            logger.fine("Sender : finished");
+        }
 
-                Thread.sleep(timeout);
+        private void sendLine(int id, ByteBuffer[] packet) throws IOException {
+            if (mappedLines == null) {
+                dc.send(packets.packet(id), serverAddress);
+                return;
+            }
+            // one datagram made of the id and of the line, which is not copied
+            packet[0].clear();
+            packet[0].putLong(id).flip();
+            packet[1] = mappedLines.line(id);
+            dc.write(packet);
+        }
+
+        private void receiverThreadRun() {
+            try {
+                receive();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Receiver of lines " + first + " to " + (first + size) + " failed", e);
+            } finally {
+                stoppedShards.add(index);
+            }
+        }
+
+        private void receive() throws IOException {
+            // the lines of -mmap are only limited by the size of a datagram
+            ByteBuffer rcvBuffer = ByteBuffer.allocateDirect(replies == null ? BUFFER_SIZE : Long.BYTES + MAX_LINE_SIZE);
+            while (!answersLog.allSent()) {
+                rcvBuffer.clear();
+                try {
+                    dc.receive(rcvBuffer);
+                } catch (PortUnreachableException e) {
+                    // with -mmap, the channel is connected and gets the errors of the lines sent
+                    // before the server started
+                    continue;
+                }
+                rcvBuffer.flip();
+                if (rcvBuffer.remaining() < Long.BYTES) {
+                    continue;
+                }
+                var id = rcvBuffer.getLong() - first;
+                if (id < 0 || id >= size) {
+                    continue;
+                }
+                var sendTime = sendTimes.get((int) id);
+                if (!answersLog.setReceived((int) id)) {
+                    // duplicate
+                    continue;
+                }
+                if (sendTime != NOT_TIMED) {
+                    rtt.addSample(System.nanoTime() - sendTime);
+                }
+                progress = true;
+                if (replies != null) {
+                    replies.put((int) id, rcvBuffer);
+                    continue;
+                }
+                var msg = UTF8.decode(rcvBuffer).toString();
+
+                upperCaseLines[first + (int) id] = msg;
+            }
+        }
+
+        private void close() throws IOException {
+            dc.close();
+            if (replies != null) {
+                replies.close();
             }
-        } catch (InterruptedException e) {
-            logger.info("Sender has been interrupted");
         }
-        System.out.println("finishSEnd");
     }
 
-    public void launch() throws IOException {
-        Thread senderThread = new Thread(this::senderThreadRun);
-        senderThread.start();
-        ByteBuffer rcvBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-        // TODO : body of the receiver thread
-        while (!answersLog.allSent()) {
-            rcvBuffer.clear();
-            dc.receive(rcvBuffer);
-            rcvBuffer.flip();
-            var id = rcvBuffer.getLong();
-            answersLog.setReceived((int) id);
-            var msg = UTF8.decode(rcvBuffer).toString();
-
-            upperCaseLines[(int) id] = msg;
-        }
-        senderThread.interrupt();
-
-        Files.write(Paths.get(outFilename), Arrays.asList(upperCaseLines), UTF8,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.WRITE,
-                StandardOpenOption.TRUNCATE_EXISTING);
-        dc.close();
-        System.out.println("finishReceinved");
+    public void launch() throws IOException, InterruptedException {
+        var senders = new Thread[shards.length];
+        var receivers = new Thread[shards.length];
+        for (var i = 0; i < shards.length; i++) {
+            senders[i] = new Thread(shards[i]::senderThreadRun, "sender-" + i);
+            receivers[i] = new Thread(shards[i]::receiverThreadRun, "receiver-" + i);
+            senders[i].start();
+            receivers[i].start();
+        }
+        try {
+            for (var i = 0; i < shards.length; i++) {
+                // in the order they stop, so that a failure stops the other shards at once
+                var stopped = stoppedShards.take();
+                senders[stopped].interrupt();
+                if (shards[stopped].failure != null) {
+                    throw shards[stopped].failure;
+                }
+            }
+
+            if (mappedLines != null) {
+                try (var out = FileChannel.open(Paths.get(outFilename), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    // the ranges of the shards follow each other
+                    for (var shard : shards) {
+                        shard.replies.writeTo(out, LINE_SEPARATOR);
+                    }
+                }
+            } else {
+                Files.write(Paths.get(outFilename), Arrays.asList(upperCaseLines), UTF8,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+        } finally {
+            for (var i = 0; i < shards.length; i++) {
+                senders[i].interrupt();
+                // unblocks the receivers left if one of them failed
+                shards[i].close();
+            }
+        }
+        logger.fine("All the replies have been received");
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length != 5) {
+        if (args.length < 5) {
             usage();
             return;
         }
+        var mapped = false;
+        var channels = 1;
+        for (var i = 5; i < args.length; i++) {
+            if (args[i].equals("-mmap")) {
+                mapped = true;
+            } else if (args[i].equals("-channels") && i + 1 < args.length) {
+                channels = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
 
         String inFilename = args[0];
         String outFilename = args[1];
@@ -120,52 +334,116 @@ public class ClientIdUpperCaseUDPBurst {
         int port = Integer.valueOf(args[4]);
         InetSocketAddress serverAddress = new InetSocketAddress(host, port);
 
+        if (mapped) {
+            var client = new ClientIdUpperCaseUDPBurst(MappedLines.map(Paths.get(inFilename), MAX_LINE_SIZE),
+                    timeout, serverAddress, outFilename, channels);
+            client.launch();
+            return;
+        }
         //Read all lines of inFilename opened in UTF-8
         List<String> lines = Files.readAllLines(Paths.get(inFilename), UTF8);
         //Create client with the parameters and launch it
-        ClientIdUpperCaseUDPBurst client = new ClientIdUpperCaseUDPBurst(lines, timeout, serverAddress, outFilename);
+        ClientIdUpperCaseUDPBurst client = new ClientIdUpperCaseUDPBurst(lines, timeout, serverAddress, outFilename, channels);
         client.launch();
 
 
     }
 
+    /**
+     * Set of the lines whose reply was received, read by the sender thread while the receiver
+     * thread updates it, without any lock.
+     * <p>
+     * The bits are set by compare-and-set in an AtomicLongArray, and a second level has a bit per
+     * word of the first one, set once this word is full, so that {@link #nextMissing(int)} skips
+     * 4096 received lines at a time: a round of the sender costs about the number of lines still
+     * missing. The bits after the last line are set from the start, so that the last word can
+     * be full.
+     */
     private static class AnswersLog {
-        private final BitSet bs;
-        private final int bitSetSize;
+        private final int size;
+        private final AtomicLongArray words;
+        private final AtomicLongArray fullWords;
+        private final AtomicInteger outstanding;
 
         public AnswersLog(int size) {
-            bs = new BitSet(size);
-            bitSetSize = size;
-
-        }
-
-        private final Object lock = new Object();
-
-        public void setReceived(int value) {
-            synchronized (lock) {
-                bs.set(value);
+            this.size = size;
+            words = new AtomicLongArray((size + Long.SIZE - 1) >>> 6);
+            fullWords = new AtomicLongArray((words.length() + Long.SIZE - 1) >>> 6);
+            outstanding = new AtomicInteger(size);
+            if ((size & (Long.SIZE - 1)) != 0) {
+                setBits(words, words.length() - 1, -1L << size);
             }
         }
 
-        public boolean isSent(int value) {
-            synchronized (lock) {
-                return bs.get(value);
-
+        /**
+         * @return false if the reply of this line was already received
+         */
+        public boolean setReceived(int value) {
+            var index = value >>> 6;
+            var word = setBits(words, index, 1L << value);
+            if ((word & 1L << value) != 0) {
+                return false;
             }
+            if ((word | 1L << value) == -1L) {
+                setBits(fullWords, index >>> 6, 1L << index);
+            }
+            outstanding.decrementAndGet();
+            return true;
         }
 
         public boolean allSent() {
-            if (bitSetSize == bs.cardinality()) {
+            return outstanding.get() == 0;
+        }
 
-                return true;
+        /**
+         * @return the first line from from included whose reply is missing, or -1 if there is none
+         */
+        public int nextMissing(int from) {
+            if (from >= size) {
+                return -1;
+            }
+            var index = from >>> 6;
+            var missing = ~words.get(index) & -1L << from;
+            while (missing == 0) {
+                index = nextNotFull(index + 1);
+                if (index < 0) {
+                    return -1;
+                }
+                missing = ~words.get(index);
             }
-            return false;
+            return index << 6 | Long.numberOfTrailingZeros(missing);
         }
 
+        /**
+         * @return the first word from from included that is not full, or -1 if there is none
+         */
+        private int nextNotFull(int from) {
+            if (from >= words.length()) {
+                return -1;
+            }
+            var index = from >>> 6;
+            var notFull = ~fullWords.get(index) & -1L << from;
+            while (notFull == 0) {
+                if (++index == fullWords.length()) {
+                    return -1;
+                }
+                notFull = ~fullWords.get(index);
+            }
+            var word = index << 6 | Long.numberOfTrailingZeros(notFull);
+            return word < words.length() ? word : -1;
+        }
 
-        // TODO Thread-safe class handling the information about missing lines
-
+        /**
+         * Sets the bits of mask in the word index of array.
+         *
+         * @return the previous value of the word
+         */
+        private static long setBits(AtomicLongArray array, int index, long mask) {
+            long word;
+            do {
+                word = array.get(index);
+            } while ((word & mask) != mask && !array.compareAndSet(index, word, word | mask));
+            return word;
+        }
     }
 }
-
-
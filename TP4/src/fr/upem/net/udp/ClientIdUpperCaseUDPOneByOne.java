@@ -98,22 +98,34 @@ public class ClientIdUpperCaseUDPOneByOne {
     public void launch() throws IOException, InterruptedException {
         Thread listenerThread = new Thread(this::listenerThreadRun);
         listenerThread.start();
-        long lastSend = 0;
+        long lastSend;
+        var rtt = new RttEstimator(timeout);
         ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
         for(int i = 0; i < lines.size(); i++){
             bb.clear();
             bb.putLong(i);
             bb.put(UTF8.encode(lines.get(i)));
+            bb.flip();
+            var firstSendTime = System.nanoTime();
+            dc.send(bb, serverAddress);
+            lastSend = System.currentTimeMillis();
+            var retransmitted = false;
             Response msg;
-            while((msg = queue.poll(timeout, TimeUnit.MILLISECONDS)) == null || msg.id != i){
+            while((msg = queue.poll(rtt.getTimeout(), TimeUnit.MILLISECONDS)) == null || msg.id != i){
                 var currentTime = System.currentTimeMillis();
 
-                if (currentTime - lastSend >= timeout) {
-                    bb.flip();
+                if (currentTime - lastSend >= rtt.getTimeout()) {
+                    rtt.backoff();
+                    bb.rewind();
                     dc.send(bb, serverAddress);
+                    retransmitted = true;
                     lastSend = currentTime;
                 }
             }
+            if (!retransmitted) {
+                // Karn's rule : the reply of a retransmitted line cannot be timed
+                rtt.addSample(System.nanoTime() - firstSendTime);
+            }
             upperCaseLines.add(msg.msg);
 
         }
@@ -0,0 +1,89 @@
+package fr.upem.net.udp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * ASCII detection and uppercase conversion working on 8 bytes at a time (SWAR: SIMD within a
+ * register).
+ * <p>
+ * A long is read from the buffer and all its bytes are treated with the same arithmetic
+ * operations: a byte is ASCII if its high bit is cleared, and an ASCII byte is a lowercase
+ * letter if adding 0x80 - 'a' sets its high bit while adding 0x80 - 'z' - 1 does not. As the
+ * bytes are below 0x80, these additions never carry into the next byte. The bytes are treated
+ * independently, so the byte order of the long does not matter and the native one is used.
+ * <p>
+ * This class only has static methods.
+ */
+public final class AsciiCase {
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    // 0x80 - 'a' in each byte
+    private static final long ADD_LOWER_A = 0x1F1F1F1F1F1F1F1FL;
+    // 0x80 - 'z' - 1 in each byte
+    private static final long ADD_LOWER_Z = 0x0505050505050505L;
+
+    private AsciiCase() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @return true if all the remaining bytes of buff are ASCII, the position is unchanged
+     */
+    public static boolean isAscii(ByteBuffer buff) {
+        var order = buff.order();
+        buff.order(ByteOrder.nativeOrder());
+        try {
+            var i = buff.position();
+            var limit = buff.limit();
+            var bits = 0L;
+            for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+                bits |= buff.getLong(i);
+            }
+            for (; i < limit; i++) {
+                bits |= buff.get(i);
+            }
+            return (bits & HIGH_BITS) == 0;
+        } finally {
+            buff.order(order);
+        }
+    }
+
+    /**
+     * Uppercases in place the remaining bytes of buff if they are all ASCII, the position is
+     * unchanged.
+     *
+     * @return false if a byte is not ASCII, the bytes before it may have been uppercased
+     */
+    public static boolean upperCaseInPlace(ByteBuffer buff) {
+        var order = buff.order();
+        buff.order(ByteOrder.nativeOrder());
+        try {
+            var i = buff.position();
+            var limit = buff.limit();
+            for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+                var word = buff.getLong(i);
+                if ((word & HIGH_BITS) != 0) {
+                    return false;
+                }
+                var lowerCase = (word + ADD_LOWER_A) & ~(word + ADD_LOWER_Z) & HIGH_BITS;
+                if (lowerCase != 0) {
+                    // 0x80 >>> 2 is 0x20, the difference between a lowercase letter and its uppercase
+                    buff.putLong(i, word ^ (lowerCase >>> 2));
+                }
+            }
+            for (; i < limit; i++) {
+                var b = buff.get(i);
+                if (b < 0) {
+                    return false;
+                }
+                if (b >= 'a' && b <= 'z') {
+                    buff.put(i, (byte) (b - ('a' - 'A')));
+                }
+            }
+            return true;
+        } finally {
+            buff.order(order);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package fr.upem.net.udp;
+
+/**
+ * Fixed-size set of bits indexed by a long, keeping track of the number of bits set so that
+ * {@link #cardinality()} and {@link #isFull()} are constant-time.
+ * <p>
+ * The bits are stored in chunks of {@value #CHUNK_BITS} bits allocated on first use, so a large
+ * set that is filled progressively only uses memory for the parts that have been touched. When
+ * a chunk is completely set, its storage is released and replaced by a shared full chunk.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class ChunkedBitSet {
+
+    private static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_BITS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_BITS - 1;
+    private static final long[] FULL = new long[0];
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int OBJECT_BYTES = 48;
+
+    private final long size;
+    private final long[][] chunks;
+    private final int[] chunkCounts;
+    private long cardinality;
+    private long allocatedBytes;
+
+    /**
+     * @param size the number of bits of the set, all cleared
+     */
+    public ChunkedBitSet(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        var nbChunks = (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+        if (nbChunks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("size too large " + size);
+        }
+        this.size = size;
+        this.chunks = new long[(int) nbChunks][];
+        this.chunkCounts = new int[(int) nbChunks];
+        this.allocatedBytes = footprint(size);
+    }
+
+    /**
+     * Returns an estimation of the memory used by an empty set of the given size, without
+     * allocating it.
+     *
+     * @param size the number of bits of the set
+     * @return the estimated number of bytes
+     */
+    public static long footprint(long size) {
+        var nbChunks = (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+        // one reference (compressed) and one int per chunk
+        return OBJECT_BYTES + 2 * ARRAY_HEADER_BYTES + nbChunks * (Integer.BYTES + Integer.BYTES);
+    }
+
+    /**
+     * @return an estimation of the memory currently used by this set, in bytes
+     */
+    public long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return the number of bits of the set
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bits set
+     */
+    public long cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return true if all the bits are set
+     */
+    public boolean isFull() {
+        return cardinality == size;
+    }
+
+    public boolean get(long index) {
+        checkIndex(index);
+        var chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+        if (chunk == null) {
+            return false;
+        }
+        if (chunk == FULL) {
+            return true;
+        }
+        var bit = (int) index & CHUNK_MASK;
+        return (chunk[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Sets the bit at the given index.
+     *
+     * @return true if the bit was not already set
+     */
+    public boolean set(long index) {
+        checkIndex(index);
+        var chunkIndex = (int) (index >>> CHUNK_SHIFT);
+        var chunk = chunks[chunkIndex];
+        if (chunk == FULL) {
+            return false;
+        }
+        if (chunk == null) {
+            chunk = new long[chunkLength(chunkIndex)];
+            chunks[chunkIndex] = chunk;
+            allocatedBytes += chunkBytes(chunk);
+        }
+        var bit = (int) index & CHUNK_MASK;
+        var word = bit >>> 6;
+        var mask = 1L << bit;
+        if ((chunk[word] & mask) != 0) {
+            return false;
+        }
+        chunk[word] |= mask;
+        cardinality++;
+        if (++chunkCounts[chunkIndex] == chunkBits(chunkIndex)) {
+            chunks[chunkIndex] = FULL;
+            allocatedBytes -= chunkBytes(chunk);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first bit set at or after from.
+     * The chunks that are not allocated or full are skipped without being scanned.
+     *
+     * @return the index of the bit, or -1 if there is none
+     */
+    public long nextSetBit(long from) {
+        return nextBit(from, true);
+    }
+
+    /**
+     * Returns the index of the first bit cleared at or after from.
+     *
+     * @return the index of the bit, or size() if there is none
+     */
+    public long nextClearBit(long from) {
+        var index = nextBit(from, false);
+        return index < 0 ? size : index;
+    }
+
+    private long nextBit(long from, boolean value) {
+        if (from < 0) {
+            throw new IndexOutOfBoundsException("from " + from + " is negative");
+        }
+        for (var index = from; index < size; ) {
+            var chunkIndex = (int) (index >>> CHUNK_SHIFT);
+            var chunk = chunks[chunkIndex];
+            if (chunk == FULL || chunk == null) {
+                if ((chunk == FULL) == value) {
+                    return index;
+                }
+                index = (long) (chunkIndex + 1) << CHUNK_SHIFT;
+                continue;
+            }
+            var bit = (int) index & CHUNK_MASK;
+            var word = bit >>> 6;
+            // the bits before index in its word are masked out
+            var bits = (value ? chunk[word] : ~chunk[word]) & (-1L << bit);
+            while (bits == 0 && ++word < chunk.length) {
+                bits = value ? chunk[word] : ~chunk[word];
+            }
+            if (bits != 0) {
+                var found = ((long) chunkIndex << CHUNK_SHIFT) + (word << 6) + Long.numberOfTrailingZeros(bits);
+                // the unused bits of the last word are cleared
+                return found < size ? found : -1;
+            }
+            index = (long) (chunkIndex + 1) << CHUNK_SHIFT;
+        }
+        return -1;
+    }
+
+    private int chunkBits(int chunkIndex) {
+        if (chunkIndex == chunks.length - 1) {
+            var lastBits = (int) (size & CHUNK_MASK);
+            return lastBits == 0 ? CHUNK_BITS : lastBits;
+        }
+        return CHUNK_BITS;
+    }
+
+    private int chunkLength(int chunkIndex) {
+        return (chunkBits(chunkIndex) + 63) >>> 6;
+    }
+
+    private static long chunkBytes(long[] chunk) {
+        return ARRAY_HEADER_BYTES + (long) chunk.length * Long.BYTES;
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + size);
+        }
+    }
+}
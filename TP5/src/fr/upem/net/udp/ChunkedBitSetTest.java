@@ -0,0 +1,99 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import static fr.upem.net.udp.ChunkedBitSet.CHUNK_BITS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class ChunkedBitSetTest {
+
+    @Test
+    public void setAtChunkBoundaries() {
+        var bs = new ChunkedBitSet(3L * CHUNK_BITS);
+        for (var index : new long[]{0, CHUNK_BITS - 1, CHUNK_BITS, 2L * CHUNK_BITS - 1, 2L * CHUNK_BITS, 3L * CHUNK_BITS - 1}) {
+            assertFalse(bs.get(index));
+            assertTrue(bs.set(index));
+            assertTrue(bs.get(index));
+            assertFalse(bs.set(index));
+        }
+        assertEquals(6, bs.cardinality());
+        assertFalse(bs.get(1));
+        assertFalse(bs.get(CHUNK_BITS + 1));
+        assertEquals(CHUNK_BITS - 1, bs.nextSetBit(1));
+        assertEquals(CHUNK_BITS, bs.nextSetBit(CHUNK_BITS));
+        assertEquals(2L * CHUNK_BITS - 1, bs.nextSetBit(CHUNK_BITS + 1));
+        assertEquals(1, bs.nextClearBit(0));
+        assertEquals(CHUNK_BITS + 1, bs.nextClearBit(CHUNK_BITS - 1));
+    }
+
+    @Test
+    public void fullChunk() {
+        var bs = new ChunkedBitSet(2L * CHUNK_BITS + 10);
+        var empty = bs.allocatedBytes();
+        for (var i = 0; i < CHUNK_BITS - 1; i++) {
+            assertTrue(bs.set(CHUNK_BITS + i));
+        }
+        assertTrue(bs.allocatedBytes() > empty);
+        assertEquals(2L * CHUNK_BITS - 1, bs.nextClearBit(CHUNK_BITS));
+        assertTrue(bs.set(2L * CHUNK_BITS - 1));
+        // the storage of the full chunk is released
+        assertEquals(empty, bs.allocatedBytes());
+        assertEquals(CHUNK_BITS, bs.cardinality());
+        assertTrue(bs.get(CHUNK_BITS + 12345));
+        assertFalse(bs.set(CHUNK_BITS + 12345));
+        assertEquals(CHUNK_BITS, bs.cardinality());
+        assertEquals(CHUNK_BITS, bs.nextSetBit(0));
+        assertEquals(CHUNK_BITS + 7, bs.nextSetBit(CHUNK_BITS + 7));
+        assertEquals(2L * CHUNK_BITS, bs.nextClearBit(CHUNK_BITS));
+        assertEquals(-1, bs.nextSetBit(2L * CHUNK_BITS));
+    }
+
+    @Test
+    public void fullSetWithPartialLastChunk() {
+        var size = CHUNK_BITS + 70;
+        var bs = new ChunkedBitSet(size);
+        for (var i = size - 1; i >= 0; i--) {
+            assertFalse(bs.isFull());
+            bs.set(i);
+        }
+        assertTrue(bs.isFull());
+        assertEquals(size, bs.cardinality());
+        assertEquals(size, bs.nextClearBit(0));
+        assertEquals(size - 1, bs.nextSetBit(size - 1));
+    }
+
+    @Test
+    public void nextBitsIgnoreTheEndOfTheLastWord() {
+        var bs = new ChunkedBitSet(70);
+        assertEquals(-1, bs.nextSetBit(0));
+        assertEquals(69, bs.nextClearBit(69));
+        bs.set(69);
+        assertEquals(70, bs.nextClearBit(69));
+        assertEquals(69, bs.nextSetBit(0));
+    }
+
+    @Test
+    public void outOfRangeIndexes() {
+        var bs = new ChunkedBitSet(CHUNK_BITS + 1);
+        assertThrows(IndexOutOfBoundsException.class, () -> bs.set(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> bs.set(CHUNK_BITS + 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> bs.get(Long.MAX_VALUE));
+        assertThrows(IndexOutOfBoundsException.class, () -> bs.nextSetBit(-1));
+        assertEquals(0, bs.cardinality());
+        assertEquals(-1, bs.nextSetBit(CHUNK_BITS + 1));
+        assertEquals(CHUNK_BITS + 1, bs.nextClearBit(CHUNK_BITS + 1));
+    }
+
+    @Test
+    public void emptyAndInvalidSizes() {
+        var bs = new ChunkedBitSet(0);
+        assertTrue(bs.isFull());
+        assertThrows(IndexOutOfBoundsException.class, () -> bs.set(0));
+        assertThrows(IllegalArgumentException.class, () -> new ChunkedBitSet(-1));
+        assertThrows(IllegalArgumentException.class, () -> new ChunkedBitSet(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,91 @@
+package fr.upem.net.udp;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Bounded cache of the results of the sessions that are completed, used to answer the packets
+ * retransmitted by a client that did not receive the result of its session.
+ * <p>
+ * The cache is a set-associative table of primitive arrays: a session can only be stored in
+ * the {@value #WAYS} slots of its set, and when they are all used one of them is overwritten.
+ * A completed session therefore costs a few bytes instead of its whole bitmap, and the memory of
+ * the cache never grows after its creation.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class CompletedSessions {
+
+    private static final int WAYS = 4;
+
+    private final InetSocketAddress[] addresses;
+    private final int[] hashes;
+    private final long[] sessionIds;
+    private final long[] totals;
+    private final int setMask;
+    private int victim;
+
+    /**
+     * @param capacity the maximum number of sessions kept, rounded up to a power of two
+     */
+    public CompletedSessions(int capacity) {
+        if (capacity < WAYS) {
+            throw new IllegalArgumentException("capacity must be at least " + WAYS);
+        }
+        var size = Integer.highestOneBit(capacity - 1) << 1;
+        this.addresses = new InetSocketAddress[size];
+        this.hashes = new int[size];
+        this.sessionIds = new long[size];
+        this.totals = new long[size];
+        this.setMask = size / WAYS - 1;
+    }
+
+    /**
+     * Returns the index of the completed session, or -1 if it is not in the cache.
+     * The index can be given to {@link #getTotal(int)} until the next call to put.
+     */
+    public int indexOf(InetSocketAddress address, long sessionId) {
+        var addressHash = address.hashCode();
+        var first = setOf(addressHash, sessionId) * WAYS;
+        for (var slot = first; slot < first + WAYS; slot++) {
+            if (addresses[slot] != null && hashes[slot] == addressHash && sessionIds[slot] == sessionId
+                    && addresses[slot].equals(address)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the total of the completed session at the given index
+     */
+    public long getTotal(int index) {
+        return totals[index];
+    }
+
+    /**
+     * Records the result of a completed session, possibly overwriting an older one.
+     */
+    public void put(InetSocketAddress address, long sessionId, long total) {
+        var addressHash = address.hashCode();
+        var first = setOf(addressHash, sessionId) * WAYS;
+        var slot = first;
+        while (slot < first + WAYS && addresses[slot] != null) {
+            slot++;
+        }
+        if (slot == first + WAYS) {
+            slot = first + (victim++ & (WAYS - 1));
+        }
+        addresses[slot] = address;
+        hashes[slot] = addressHash;
+        sessionIds[slot] = sessionId;
+        totals[slot] = total;
+    }
+
+    private int setOf(int addressHash, long sessionId) {
+        var h = addressHash * 31 + Long.hashCode(sessionId);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & setMask;
+    }
+}
@@ -0,0 +1,95 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class CompletedSessionsTest {
+
+    // the hashCode of an InetSocketAddress is the one of its address plus its port
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 1001);
+    private static final InetSocketAddress SAME_HASH = new InetSocketAddress("127.0.0.2", 1000);
+
+    @Test
+    public void putAndFind() {
+        var completed = new CompletedSessions(1024);
+        assertEquals(-1, completed.indexOf(CLIENT, 1));
+        completed.put(CLIENT, 1, 10);
+        completed.put(CLIENT, 2, 20);
+        assertEquals(10, completed.getTotal(completed.indexOf(CLIENT, 1)));
+        assertEquals(20, completed.getTotal(completed.indexOf(CLIENT, 2)));
+        assertEquals(-1, completed.indexOf(CLIENT, 3));
+    }
+
+    @Test
+    public void collidingKeysAreDistinct() {
+        assertEquals(CLIENT.hashCode(), SAME_HASH.hashCode());
+        var completed = new CompletedSessions(1024);
+        completed.put(CLIENT, 7, 1);
+        assertEquals(-1, completed.indexOf(SAME_HASH, 7));
+        completed.put(SAME_HASH, 7, 2);
+        assertEquals(1, completed.getTotal(completed.indexOf(CLIENT, 7)));
+        assertEquals(2, completed.getTotal(completed.indexOf(SAME_HASH, 7)));
+    }
+
+    @Test
+    public void replacementInsideASet() {
+        // a single set of 4 ways
+        var completed = new CompletedSessions(4);
+        for (var id = 0; id < 4; id++) {
+            completed.put(CLIENT, id, id);
+        }
+        for (var id = 0; id < 4; id++) {
+            assertEquals(id, completed.getTotal(completed.indexOf(CLIENT, id)));
+        }
+        // the ways of a full set are overwritten in turn
+        completed.put(CLIENT, 4, 4);
+        assertEquals(-1, completed.indexOf(CLIENT, 0));
+        assertEquals(4, completed.getTotal(completed.indexOf(CLIENT, 4)));
+        completed.put(CLIENT, 5, 5);
+        assertEquals(-1, completed.indexOf(CLIENT, 1));
+        for (var id = 2; id < 6; id++) {
+            assertEquals(id, completed.getTotal(completed.indexOf(CLIENT, id)));
+        }
+    }
+
+    @Test
+    public void recentSessionsAreKept() {
+        var completed = new CompletedSessions(1 << 10);
+        for (var id = 0; id < 100_000; id++) {
+            completed.put(CLIENT, id, -id);
+            assertEquals(-id, completed.getTotal(completed.indexOf(CLIENT, id)));
+        }
+        // never more sessions than the capacity
+        var kept = 0;
+        for (var id = 0; id < 100_000; id++) {
+            var index = completed.indexOf(CLIENT, id);
+            if (index >= 0) {
+                assertEquals(-id, completed.getTotal(index));
+                kept++;
+            }
+        }
+        assertTrue(kept <= 1 << 10);
+        assertTrue(kept > 0);
+    }
+
+    @Test
+    public void capacity() {
+        assertThrows(IllegalArgumentException.class, () -> new CompletedSessions(3));
+        // rounded up to 8, that is 2 sets
+        var completed = new CompletedSessions(5);
+        for (var id = 0; id < 8; id++) {
+            completed.put(CLIENT, id, id);
+        }
+        var kept = 0;
+        for (var id = 0; id < 8; id++) {
+            kept += completed.indexOf(CLIENT, id) >= 0 ? 1 : 0;
+        }
+        assertTrue(kept >= 4 && kept <= 8);
+    }
+}
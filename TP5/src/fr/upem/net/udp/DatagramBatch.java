@@ -0,0 +1,151 @@
+package fr.upem.net.udp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Batched receive/send loop over a non-blocking DatagramChannel.
+ * <p>
+ * Each round drains every datagram already queued in the socket (up to batchSize) into
+ * pre-allocated direct buffers, hands them to a {@link PacketHandler} one after the other, and
+ * then flushes all the replies produced by the round. The selector is only used when the socket
+ * is empty (or full when sending), so at high packet rates most rounds do not pay any wakeup.
+ * <p>
+ * Closing a DatagramBatch closes its selector, the channel is left open for its owner.
+ * <p>
+ * This class is not thread-safe: it must be used by a single thread.
+ */
+public class DatagramBatch implements Closeable {
+
+    /**
+     * Treats one request and optionally writes the reply to send back to its sender.
+     */
+    @FunctionalInterface
+    public interface PacketHandler {
+        /**
+         * @param request the received datagram, in read mode
+         * @param exp the sender of the datagram
+         * @param reply an empty buffer in write mode where the reply must be written
+         * @return true if reply must be sent back to exp
+         * @throws IOException
+         */
+        boolean handle(ByteBuffer request, InetSocketAddress exp, ByteBuffer reply) throws IOException;
+    }
+
+    private final DatagramChannel dc;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final ByteBuffer[] requests;
+    private final InetSocketAddress[] senders;
+    private final ByteBuffer[] replies;
+    private final InetSocketAddress[] destinations;
+    private int nbReplies;
+
+    public DatagramBatch(DatagramChannel dc, int batchSize, int bufferSize) throws IOException {
+        if (batchSize < 1 || bufferSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.dc = dc;
+        dc.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = dc.register(selector, SelectionKey.OP_READ);
+        this.requests = new ByteBuffer[batchSize];
+        this.replies = new ByteBuffer[batchSize];
+        this.senders = new InetSocketAddress[batchSize];
+        this.destinations = new InetSocketAddress[batchSize];
+        for (var i = 0; i < batchSize; i++) {
+            requests[i] = ByteBuffer.allocateDirect(bufferSize);
+            replies[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    /**
+     * Runs rounds until the current thread is interrupted.
+     *
+     * @param handler the handler called for each received datagram
+     * @throws IOException
+     */
+    public void serve(PacketHandler handler) throws IOException {
+        while (!Thread.interrupted()) {
+            if (process(handler) == 0) {
+                awaitReadable(0);
+            }
+        }
+    }
+
+    /**
+     * Performs one round: drains the datagrams available in the socket, treats them and sends
+     * the replies. Never blocks on reception.
+     *
+     * @param handler the handler called for each received datagram
+     * @return the number of datagrams treated during this round
+     * @throws IOException
+     */
+    public int process(PacketHandler handler) throws IOException {
+        var nbRequests = receiveAll();
+        for (var i = 0; i < nbRequests; i++) {
+            var reply = replies[nbReplies];
+            reply.clear();
+            if (handler.handle(requests[i], senders[i], reply)) {
+                reply.flip();
+                destinations[nbReplies++] = senders[i];
+            }
+        }
+        flush();
+        return nbRequests;
+    }
+
+    /**
+     * Waits until a datagram can be received.
+     *
+     * @param timeout the maximum time to wait in milliseconds, 0 to wait forever
+     * @throws IOException
+     */
+    public void awaitReadable(long timeout) throws IOException {
+        key.interestOps(SelectionKey.OP_READ);
+        selector.select(timeout);
+        selector.selectedKeys().clear();
+    }
+
+    private int receiveAll() throws IOException {
+        var nbRequests = 0;
+        while (nbRequests < requests.length) {
+            var request = requests[nbRequests];
+            request.clear();
+            var exp = (InetSocketAddress) dc.receive(request);
+            if (exp == null) {
+                break;
+            }
+            request.flip();
+            senders[nbRequests++] = exp;
+        }
+        return nbRequests;
+    }
+
+    /**
+     * Sends all the replies of the round. When the socket send buffer is full, waits for it to
+     * be writable again instead of losing the remaining replies.
+     */
+    private void flush() throws IOException {
+        for (var i = 0; i < nbReplies; i++) {
+            var reply = replies[i];
+            while (dc.send(reply, destinations[i]) == 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+            destinations[i] = null;
+        }
+        nbReplies = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+}
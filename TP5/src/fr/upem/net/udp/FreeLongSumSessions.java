@@ -0,0 +1,370 @@
+package fr.upem.net.udp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Sessions of the FreeLongSum protocol and treatment of its requests, independently of the way
+ * the datagrams are received and sent.
+ * <p>
+ * A session is freed when the client sends CLEAN_CODE, when it did not receive any packet for
+ * idleTimeout milliseconds, or when the memory used by all the sessions exceeds maxMemory (the
+ * least recently used sessions are evicted first).
+ * <p>
+ * Besides OP_CODE, which carries one operand, OPS_CODE (9, sessionId, firstPos, totalOper, count,
+ * count values) carries the operands of the positions [firstPos, firstPos + count) and is
+ * acknowledged by ACKS_CODE (10, sessionId, firstPos, count), or by RES_CODE.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class FreeLongSumSessions {
+
+    private static final Logger logger = Logger.getLogger(FreeLongSumSessions.class.getName());
+    public static final long DEFAULT_IDLE_TIMEOUT = 60_000;
+    public static final long DEFAULT_MAX_MEMORY = 64L * 1024 * 1024;
+    // estimation of the memory used by a session besides its bitmap (ClientData and table slot)
+    private static final long SESSION_OVERHEAD = 128;
+    private static final byte OP_CODE = 1;
+    private static final byte ACK_CODE = 2;
+    private static final byte RES_CODE = 3;
+    private static final byte CLEAN_CODE = 4;
+    private static final byte ACKCLEAN_CODE = 5;
+    private static final byte OPS_CODE = 9;
+    private static final byte ACKS_CODE = 10;
+    private final SessionTable<ClientData> sessions = new SessionTable<>();
+    private final long idleTimeout;
+    private final long maxMemory;
+    private final ServerMetrics metrics;
+    // sessions ordered from the least recently used to the most recently used
+    private ClientData lruHead;
+    private ClientData lruTail;
+    private long usedMemory;
+    private long expiredSessions;
+    private long evictedSessions;
+
+    /**
+     * @param idleTimeout the time in milliseconds after which a session that did not receive any
+     *                    packet is freed
+     * @param maxMemory the maximum memory in bytes used by the sessions, the least recently used
+     *                  sessions are evicted when it is exceeded
+     */
+    public FreeLongSumSessions(long idleTimeout, long maxMemory) {
+        this(idleTimeout, maxMemory, new ServerMetrics(FreeLongSumSessions.class.getSimpleName(), true));
+    }
+
+    /**
+     * Same as FreeLongSumSessions(idleTimeout, maxMemory) with the metrics of the server, where
+     * the malformed requests are counted and the state of the sessions is registered.
+     */
+    public FreeLongSumSessions(long idleTimeout, long maxMemory, ServerMetrics metrics) {
+        if (idleTimeout <= 0 || maxMemory <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.idleTimeout = idleTimeout;
+        this.maxMemory = maxMemory;
+        this.metrics = metrics;
+        metrics.gauge("activeSessions", this::getActiveSessions);
+        metrics.gauge("expiredSessions", this::getExpiredSessions);
+        metrics.gauge("evictedSessions", this::getEvictedSessions);
+        metrics.gauge("usedMemory", this::getUsedMemory);
+    }
+
+    /**
+     * @return the time in milliseconds after which an idle session is freed
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Treats a request and writes the reply to send back, if any, in sendBuff.
+     *
+     * @param buff the request in read mode
+     * @param res the sender of the request
+     * @param sendBuff the buffer in write mode where the reply is written
+     * @return true if the content of sendBuff must be sent to res
+     */
+    public boolean process(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff) {
+        return process(buff, res, sendBuff, System.currentTimeMillis());
+    }
+
+    /**
+     * Same as process(buff, res, sendBuff) at the time now, in milliseconds.
+     */
+    boolean process(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff, long now) {
+        expireSessions(now);
+        if (buff.remaining() < Byte.BYTES) {
+            return malformed();
+        }
+        switch (buff.get()) {
+            case OP_CODE:
+                return processOp(buff, res, sendBuff, now);
+            case OPS_CODE:
+                return processOps(buff, res, sendBuff, now);
+            case CLEAN_CODE:
+                return processClean(buff, res, sendBuff);
+            default:
+                return malformed();
+        }
+    }
+
+    /**
+     * Counts a malformed request, which is not answered.
+     *
+     * @return false
+     */
+    private boolean malformed() {
+        metrics.malformed();
+        return false;
+    }
+
+    private boolean processOp(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff, long now) {
+        if (buff.remaining() < 4 * Long.BYTES) {
+            return malformed();
+        }
+        var sessionId = buff.getLong();
+        var idPos = buff.getLong();
+        var totalOper = buff.getLong();
+        var value = buff.getLong();
+        if (totalOper <= 0 || idPos < 0 || idPos >= totalOper) {
+            return malformed();
+        }
+        var cd = access(res, sessionId, totalOper, now);
+        if (cd == null) {
+            return false;
+        }
+        var before = cd.footprint();
+        var completed = cd.update(value, idPos);
+        usedMemory += cd.footprint() - before;
+        evictSessions();
+        if (completed) {
+            writeResult(sendBuff, sessionId, cd.getTotal());
+        } else {
+            sendBuff.put(ACK_CODE);
+            sendBuff.putLong(sessionId);
+            sendBuff.putLong(idPos);
+        }
+        return true;
+    }
+
+    private boolean processOps(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff, long now) {
+        if (buff.remaining() < 3 * Long.BYTES + Integer.BYTES) {
+            return malformed();
+        }
+        var sessionId = buff.getLong();
+        var firstPos = buff.getLong();
+        var totalOper = buff.getLong();
+        var count = buff.getInt();
+        // count * Long.BYTES would overflow for the largest counts
+        if (totalOper <= 0 || firstPos < 0 || count <= 0 || count > totalOper - firstPos
+                || count > buff.remaining() / Long.BYTES) {
+            return malformed();
+        }
+        var cd = access(res, sessionId, totalOper, now);
+        if (cd == null) {
+            return false;
+        }
+        var before = cd.footprint();
+        var completed = cd.update(buff, firstPos, count);
+        usedMemory += cd.footprint() - before;
+        evictSessions();
+        if (completed) {
+            writeResult(sendBuff, sessionId, cd.getTotal());
+        } else {
+            sendBuff.put(ACKS_CODE);
+            sendBuff.putLong(sessionId);
+            sendBuff.putLong(firstPos);
+            sendBuff.putInt(count);
+        }
+        return true;
+    }
+
+    private boolean processClean(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff) {
+        if (buff.remaining() < Long.BYTES) {
+            return malformed();
+        }
+        var sessionId = buff.getLong();
+        var cd = sessions.remove(res, sessionId);
+        if (cd != null) {
+            forget(cd);
+        }
+        sendBuff.put(ACKCLEAN_CODE);
+        sendBuff.putLong(sessionId);
+        return true;
+    }
+
+    /**
+     * Returns the session, created if needed, and marks it as the most recently used.
+     *
+     * @return the session, or null if it is too large to be created or if it does not have
+     *         totalOper operands
+     */
+    private ClientData access(InetSocketAddress res, long sessionId, long totalOper, long now) {
+        var cd = sessions.get(res, sessionId);
+        if (cd == null) {
+            if (SESSION_OVERHEAD + ChunkedBitSet.footprint(totalOper) > maxMemory) {
+                logger.fine("Session " + sessionId + " of " + res + " is too large : " + totalOper);
+                return null;
+            }
+            cd = new ClientData(res, sessionId, totalOper);
+            sessions.put(res, sessionId, cd);
+            usedMemory += cd.footprint();
+        } else if (cd.bs.size() != totalOper) {
+            // the positions of the request may not fit in the bitmap of the session
+            malformed();
+            return null;
+        } else {
+            unlink(cd);
+        }
+        cd.lastAccess = now;
+        linkLast(cd);
+        return cd;
+    }
+
+    private void writeResult(ByteBuffer sendBuff, long sessionId, long total) {
+        sendBuff.put(RES_CODE);
+        sendBuff.putLong(sessionId);
+        sendBuff.putLong(total);
+    }
+
+
+    /**
+     * Frees the sessions which did not receive any packet for idleTimeout milliseconds.
+     * The sessions are ordered by last access, so only the expired ones are visited.
+     */
+    public void expireSessions(long now) {
+        while (lruHead != null && now - lruHead.lastAccess >= idleTimeout) {
+            var cd = lruHead;
+            sessions.remove(cd.address, cd.sessionId);
+            forget(cd);
+            expiredSessions++;
+        }
+    }
+
+    /**
+     * Frees the least recently used sessions until the memory used by the sessions is below
+     * maxMemory. The most recently used session is never evicted.
+     */
+    private void evictSessions() {
+        while (usedMemory > maxMemory && lruHead != lruTail) {
+            var cd = lruHead;
+            sessions.remove(cd.address, cd.sessionId);
+            forget(cd);
+            evictedSessions++;
+            logger.fine("Evicted session " + cd.sessionId + " of " + cd.address);
+        }
+    }
+
+    private void forget(ClientData cd) {
+        unlink(cd);
+        usedMemory -= cd.footprint();
+    }
+
+    private void linkLast(ClientData cd) {
+        cd.older = lruTail;
+        cd.newer = null;
+        if (lruTail == null) {
+            lruHead = cd;
+        } else {
+            lruTail.newer = cd;
+        }
+        lruTail = cd;
+    }
+
+    private void unlink(ClientData cd) {
+        if (cd.older == null) {
+            lruHead = cd.newer;
+        } else {
+            cd.older.newer = cd.newer;
+        }
+        if (cd.newer == null) {
+            lruTail = cd.older;
+        } else {
+            cd.newer.older = cd.older;
+        }
+        cd.older = null;
+        cd.newer = null;
+    }
+
+    /**
+     * @return the number of sessions currently kept by the server
+     */
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the number of sessions freed because they were idle for too long
+     */
+    public long getExpiredSessions() {
+        return expiredSessions;
+    }
+
+    /**
+     * @return the number of sessions freed because the server used too much memory
+     */
+    public long getEvictedSessions() {
+        return evictedSessions;
+    }
+
+    /**
+     * @return an estimation of the memory used by the sessions, in bytes
+     */
+    public long getUsedMemory() {
+        return usedMemory;
+    }
+
+    public static class ClientData {
+        private final InetSocketAddress address;
+        private final long sessionId;
+        private final ChunkedBitSet bs;
+        private long total;
+        private long lastAccess;
+        private ClientData older;
+        private ClientData newer;
+
+        public ClientData(InetSocketAddress address, long sessionId, long totalOPer) {
+            this.address = address;
+            this.sessionId = sessionId;
+            this.bs = new ChunkedBitSet(totalOPer);
+        }
+
+        /**
+         * Adds the operand at position orderVal if it was not already received.
+         *
+         * @return true if all the operands of the session have been received
+         */
+        public boolean update(long value, long orderVal) {
+            if (orderVal >= 0 && orderVal < bs.size() && bs.set(orderVal)) {
+                total += value;
+            }
+            return bs.isFull();
+        }
+
+        /**
+         * Adds the count operands read from buff at the positions starting from firstPos,
+         * skipping the ones already received.
+         *
+         * @return true if all the operands of the session have been received
+         * @throws IndexOutOfBoundsException if firstPos + count is more than the total of operands
+         */
+        public boolean update(ByteBuffer buff, long firstPos, int count) {
+            for (var pos = firstPos; pos < firstPos + count; pos++) {
+                var value = buff.getLong();
+                if (bs.set(pos)) {
+                    total += value;
+                }
+            }
+            return bs.isFull();
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        private long footprint() {
+            return SESSION_OVERHEAD + bs.allocatedBytes();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class FreeLongSumSessionsTest {
+
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("localhost", 7777);
+
+    private final ServerMetrics metrics = new ServerMetrics("FreeLongSumSessionsTest", true);
+    private final FreeLongSumSessions sessions = new FreeLongSumSessions(60_000, 1024 * 1024, metrics);
+    private final ByteBuffer sendBuff = ByteBuffer.allocate(1024);
+
+    private static ByteBuffer op(long sessionId, long idPos, long totalOper, long value) {
+        return ByteBuffer.allocate(1024).put((byte) 1).putLong(sessionId).putLong(idPos)
+                .putLong(totalOper).putLong(value).flip();
+    }
+
+    private static ByteBuffer ops(long sessionId, long firstPos, long totalOper, int count, long... values) {
+        var buff = ByteBuffer.allocate(1024).put((byte) 9).putLong(sessionId).putLong(firstPos)
+                .putLong(totalOper).putInt(count);
+        for (var value : values) {
+            buff.putLong(value);
+        }
+        return buff.flip();
+    }
+
+    private static ByteBuffer clean(long sessionId) {
+        return ByteBuffer.allocate(1024).put((byte) 4).putLong(sessionId).flip();
+    }
+
+    private static FreeLongSumSessions sessions(long idleTimeout, long maxMemory) {
+        return new FreeLongSumSessions(idleTimeout, maxMemory, new ServerMetrics("FreeLongSumSessionsTest", true));
+    }
+
+    private boolean process(FreeLongSumSessions sessions, ByteBuffer request, long now) {
+        sendBuff.clear();
+        var reply = sessions.process(request, CLIENT, sendBuff, now);
+        sendBuff.flip();
+        return reply;
+    }
+
+    /**
+     * @return the memory used by a session of 10 operands once one of them is received
+     */
+    private static long sessionMemory() {
+        var sessions = sessions(1000, 1024 * 1024);
+        sessions.process(op(1, 0, 10, 1), CLIENT, ByteBuffer.allocate(1024), 0);
+        return sessions.getUsedMemory();
+    }
+
+    private boolean process(ByteBuffer request) {
+        sendBuff.clear();
+        var reply = sessions.process(request, CLIENT, sendBuff);
+        sendBuff.flip();
+        return reply;
+    }
+
+    private long malformed() {
+        return metrics.snapshot().get("malformed");
+    }
+
+    @Test
+    public void opsCompletesSession() {
+        assertTrue(process(op(1, 0, 3, 10)));
+        assertTrue(process(ops(1, 1, 3, 2, 20, 30)));
+        assertEquals(3, sendBuff.get());
+        assertEquals(1, sendBuff.getLong());
+        assertEquals(60, sendBuff.getLong());
+    }
+
+    @Test
+    public void opsBeyondTheSessionIsMalformed() {
+        assertTrue(process(op(1, 0, 10, 1)));
+        // valid for a session of 1000 operands, but the session has 10
+        assertFalse(process(ops(1, 500, 1000, 1, 2)));
+        assertEquals(1, malformed());
+        assertFalse(process(op(1, 5, 1000, 2)));
+        assertEquals(2, malformed());
+        // the session is still usable
+        assertTrue(process(op(1, 1, 10, 1)));
+        assertEquals(2, sendBuff.get());
+    }
+
+    @Test
+    public void opsWithHugeCountIsMalformed() {
+        // 1 << 29 values would be 4 GB, count * Long.BYTES overflows an int
+        assertFalse(process(ops(1, 0, 1L << 40, 1 << 29, 1, 2, 3)));
+        assertFalse(process(ops(1, 0, 1L << 40, Integer.MAX_VALUE, 1, 2, 3)));
+        assertEquals(2, malformed());
+        assertEquals(0, sessions.getActiveSessions());
+    }
+
+    @Test
+    public void opsWithMissingValuesIsMalformed() {
+        assertFalse(process(ops(1, 0, 10, 3, 1, 2)));
+        assertEquals(1, malformed());
+        assertEquals(0, sessions.getActiveSessions());
+    }
+
+    @Test
+    public void idleSessionsExpire() {
+        var sessions = sessions(1000, 1024 * 1024);
+        assertTrue(process(sessions, op(1, 0, 10, 1), 0));
+        assertTrue(process(sessions, op(2, 0, 10, 1), 500));
+        sessions.expireSessions(999);
+        assertEquals(2, sessions.getActiveSessions());
+        sessions.expireSessions(1000);
+        assertEquals(1, sessions.getActiveSessions());
+        assertEquals(1, sessions.getExpiredSessions());
+        // a packet makes the session recently used again
+        assertTrue(process(sessions, op(2, 1, 10, 1), 1400));
+        assertEquals(1, sessions.getActiveSessions());
+        // the sessions are expired before the request is treated
+        assertTrue(process(sessions, op(3, 0, 10, 1), 2400));
+        assertEquals(1, sessions.getActiveSessions());
+        assertEquals(2, sessions.getExpiredSessions());
+        sessions.expireSessions(3400);
+        assertEquals(0, sessions.getActiveSessions());
+        assertEquals(3, sessions.getExpiredSessions());
+        assertEquals(0, sessions.getUsedMemory());
+    }
+
+    @Test
+    public void leastRecentlyUsedSessionIsEvicted() {
+        var memory = sessionMemory();
+        var sessions = sessions(60_000, 3 * memory);
+        assertTrue(process(sessions, op(1, 0, 10, 1), 0));
+        assertTrue(process(sessions, op(2, 0, 10, 1), 1));
+        assertTrue(process(sessions, op(3, 0, 10, 1), 2));
+        assertEquals(3 * memory, sessions.getUsedMemory());
+        // session 1 becomes the most recently used, session 2 the least
+        assertTrue(process(sessions, op(1, 1, 10, 1), 3));
+        assertTrue(process(sessions, op(4, 0, 10, 1), 4));
+        assertEquals(3, sessions.getActiveSessions());
+        assertEquals(1, sessions.getEvictedSessions());
+        assertEquals(0, sessions.getExpiredSessions());
+        assertEquals(3 * memory, sessions.getUsedMemory());
+        // session 2 starts again from scratch, evicting session 3
+        assertTrue(process(sessions, op(2, 1, 10, 1), 5));
+        assertEquals(2, sessions.getEvictedSessions());
+        for (var id = 1; id <= 4; id++) {
+            process(sessions, clean(id), 6);
+        }
+        assertEquals(0, sessions.getActiveSessions());
+        assertEquals(0, sessions.getUsedMemory());
+    }
+
+    @Test
+    public void mostRecentlyUsedSessionIsNeverEvicted() {
+        var memory = sessionMemory();
+        // enough for an empty session, not once its bitmap is allocated
+        var sessions = sessions(60_000, memory - 1);
+        assertTrue(process(sessions, op(1, 0, 10, 1), 0));
+        assertEquals(1, sessions.getActiveSessions());
+        assertEquals(0, sessions.getEvictedSessions());
+        assertEquals(memory, sessions.getUsedMemory());
+        // a second session evicts the first one, but not itself
+        assertTrue(process(sessions, op(2, 0, 10, 1), 1));
+        assertEquals(1, sessions.getActiveSessions());
+        assertEquals(1, sessions.getEvictedSessions());
+        assertEquals(memory, sessions.getUsedMemory());
+    }
+
+    @Test
+    public void usedMemoryFollowsTheSessions() {
+        var sessions = sessions(60_000, 1024 * 1024);
+        assertTrue(process(sessions, op(1, 0, 10, 1), 0));
+        var memory = sessions.getUsedMemory();
+        assertTrue(memory > 0);
+        // the bitmap of 10 operands is a single chunk, allocated by the first operand
+        assertTrue(process(sessions, op(1, 1, 10, 1), 0));
+        assertEquals(memory, sessions.getUsedMemory());
+        assertTrue(process(sessions, op(2, 0, 3L * ChunkedBitSet.CHUNK_BITS, 1), 0));
+        var twoSessions = sessions.getUsedMemory();
+        assertTrue(twoSessions > memory);
+        // a second chunk of session 2
+        assertTrue(process(sessions, op(2, ChunkedBitSet.CHUNK_BITS, 3L * ChunkedBitSet.CHUNK_BITS, 1), 0));
+        assertTrue(sessions.getUsedMemory() > twoSessions);
+        assertTrue(process(sessions, clean(2), 0));
+        assertEquals(5, sendBuff.get());
+        assertEquals(2, sendBuff.getLong());
+        assertEquals(memory, sessions.getUsedMemory());
+        assertTrue(process(sessions, clean(1), 0));
+        assertEquals(0, sessions.getActiveSessions());
+        assertEquals(0, sessions.getUsedMemory());
+        // cleaning an unknown session is acknowledged too
+        assertTrue(process(sessions, clean(1), 0));
+        assertEquals(0, sessions.getUsedMemory());
+    }
+
+    @Test
+    public void tooLargeSessionIsRefused() {
+        var sessions = sessions(60_000, 1024);
+        // the directory of the bitmap alone is larger than 1 KB
+        assertFalse(process(sessions, op(1, 0, 1L << 30, 1), 0));
+        assertFalse(process(sessions, ops(1, 0, 1L << 30, 1, 1), 0));
+        assertEquals(0, sessions.getActiveSessions());
+        assertEquals(0, sessions.getEvictedSessions());
+        assertEquals(0, sessions.getUsedMemory());
+        // a small session still fits
+        assertTrue(process(sessions, op(2, 0, 10, 1), 0));
+        assertEquals(1, sessions.getActiveSessions());
+    }
+}
@@ -7,25 +7,38 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class ServerFreeLongSumUDP {
 
     private static final Logger logger = Logger.getLogger(ServerFreeLongSumUDP.class.getName());
     private static final int BUFFER_SIZE = 1024;
+    private static final int BATCH_SIZE = 64;
     private final DatagramChannel dc;
     private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
     private final ByteBuffer sendBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private final HashMap<InetSocketAddress, HashMap<Long, ClientData>> map = new HashMap<>();
-    private final byte OP_CODE = 1;
-    private final byte ACK_CODE = 2;
-    private final byte RES_CODE = 3;
-    private final byte CLEAN_CODE = 4;
-    private final static byte ACKCLEAN_CODE = 5;
+    private final FreeLongSumSessions sessions;
+    private final ServerMetrics metrics;
+    // sessions.process, counted in the metrics
+    private final DatagramBatch.PacketHandler handler;
 
     public ServerFreeLongSumUDP(int port) throws IOException {
+        this(port, FreeLongSumSessions.DEFAULT_IDLE_TIMEOUT, FreeLongSumSessions.DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * @param port the port of the server
+     * @param idleTimeout the time in milliseconds after which a session that did not receive any
+     *                    packet is freed
+     * @param maxMemory the maximum memory in bytes used by the sessions, the least recently used
+     *                  sessions are evicted when it is exceeded
+     * @throws IOException
+     */
+    public ServerFreeLongSumUDP(int port, long idleTimeout, long maxMemory) throws IOException {
+        this.metrics = new ServerMetrics("ServerFreeLongSumUDP-" + port, true);
+        this.sessions = new FreeLongSumSessions(idleTimeout, maxMemory, metrics);
+        this.handler = metrics.instrument(sessions::process);
         dc = DatagramChannel.open();
         dc.bind(new InetSocketAddress(port));
         logger.info("ServerBetterUpperCaseUDP started on port " + port);
@@ -34,104 +47,76 @@ public class ServerFreeLongSumUDP {
     public void serve() throws IOException {
         while (!Thread.interrupted()) {
             buff.clear();
-            var res = dc.receive(buff);
+            var exp = (InetSocketAddress) dc.receive(buff);
             buff.flip();
-            if (buff.remaining() > Byte.BYTES) {
-                var op = buff.get();
-                if (op == OP_CODE) {
-                    if (buff.remaining() > Long.BYTES) {
-                        var sessionId = buff.getLong();
-                        if (buff.remaining() > Long.BYTES) {
-                            var idPos = buff.getLong();
-                            if (buff.remaining() > Long.BYTES) {
-                                var totalOper = buff.getLong();
-                                if (buff.remaining() >= Long.BYTES) {
-                                    var value = buff.getLong();
-                                    //VERIFIER SI SESSIONID EXISTE
-                                    var cd = new ClientData(totalOper);
-                                    HashMap<Long, ClientData> temp = new HashMap<>();
-                                    temp.put(sessionId, cd);
-                                    map.putIfAbsent((InetSocketAddress) res, temp);
-                                    if (!map.get(res).containsKey(sessionId)) {
-                                        map.get(res).put(sessionId, cd);
-                                    }
-
-                                    if (map.get(res).get(sessionId).update(value, idPos)) {
-                                        sendBuff.clear();
-                                        sendBuff.put(RES_CODE);
-                                        sendBuff.putLong(sessionId);
-                                        sendBuff.putLong(map.get(res).get(sessionId).getTotal());
-                                        sendBuff.flip();
-                                        dc.send(sendBuff, res);
-
-                                    } else {
-                                        sendBuff.clear();
-
-                                        sendBuff.put(ACK_CODE);
-                                        sendBuff.putLong(sessionId);
-                                        sendBuff.putLong(idPos);
-                                        sendBuff.flip();
-                                        dc.send(sendBuff, res);
-                                    }
-
-                                }
-                            }
-                        }
-                    }
-
-                }
-                else if(op == CLEAN_CODE){
-                    if (buff.remaining() >= Long.BYTES) {
-                        var sessionId = buff.getLong();
-                        map.get(res).remove(sessionId);
-                        sendBuff.clear();
-                        sendBuff.put(ACKCLEAN_CODE);
-                        sendBuff.putLong(sessionId);
-                        sendBuff.flip();
-                        dc.send(sendBuff, res);
-                    }
+            sendBuff.clear();
+            if (handler.handle(buff, exp, sendBuff)) {
+                sendBuff.flip();
+                dc.send(sendBuff, exp);
+            }
+        }
+        dc.close();
+    }
 
+    /**
+     * Same as serve() but receives and sends the datagrams by batches, see {@link DatagramBatch}.
+     *
+     * @throws IOException
+     */
+    public void serveBatched() throws IOException {
+        try (var batch = new DatagramBatch(dc, BATCH_SIZE, BUFFER_SIZE)) {
+            while (!Thread.interrupted()) {
+                if (batch.process(handler) == 0) {
+                    sessions.expireSessions(System.currentTimeMillis());
+                    batch.awaitReadable(sessions.getIdleTimeout());
                 }
             }
-
         }
         dc.close();
     }
-    
 
-    public static class ClientData {
-        private final BitSet bs;
-        private long total;
-        private final long totalOPer;
+    /**
+     * @return the number of sessions currently kept by the server
+     */
+    public int getActiveSessions() {
+        return sessions.getActiveSessions();
+    }
 
-        public ClientData(long totalOPer) {
-            this.bs = new BitSet((int) totalOPer);
-            this.totalOPer = totalOPer;
-        }
+    /**
+     * @return the number of sessions freed because they were idle for too long
+     */
+    public long getExpiredSessions() {
+        return sessions.getExpiredSessions();
+    }
 
-        public boolean update(long value, long orderVal) {
-            if (!bs.get((int) orderVal)) {
-                bs.set((int) orderVal);
-                total += value;
-            }
+    /**
+     * @return the number of sessions freed because the server used too much memory
+     */
+    public long getEvictedSessions() {
+        return sessions.getEvictedSessions();
+    }
 
-            if (bs.cardinality() == totalOPer) {
-                return true;
-            }
-            return false;
-        }
+    /**
+     * @return an estimation of the memory used by the sessions, in bytes
+     */
+    public long getUsedMemory() {
+        return sessions.getUsedMemory();
+    }
 
-        public long getTotal() {
-            return total;
-        }
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
     public static void usage() {
-        System.out.println("Usage : ServerIdUpperCaseUDP port");
+        System.out.println("Usage : ServerFreeLongSumUDP port [idleTimeoutMillis maxMemoryKB] [-batch]");
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
+        var batched = args.length > 0 && args[args.length - 1].equals("-batch");
+        if (batched) {
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+        if (args.length != 1 && args.length != 3) {
             usage();
             return;
         }
@@ -141,12 +126,23 @@ public class ServerFreeLongSumUDP {
             logger.severe("The port number must be between 1024 and 65535");
             return;
         }
+        var idleTimeout = FreeLongSumSessions.DEFAULT_IDLE_TIMEOUT;
+        var maxMemory = FreeLongSumSessions.DEFAULT_MAX_MEMORY;
+        if (args.length == 3) {
+            idleTimeout = Long.valueOf(args[1]);
+            maxMemory = Long.valueOf(args[2]) * 1024;
+        }
         try {
-            server = new ServerFreeLongSumUDP(port);
+            server = new ServerFreeLongSumUDP(port, idleTimeout, maxMemory);
         } catch (BindException e) {
             logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
             return;
         }
-        server.serve();
+        server.getMetrics().export(ServerMetrics.DEFAULT_DUMP_PERIOD);
+        if (batched) {
+            server.serveBatched();
+        } else {
+            server.serve();
+        }
     }
 }
@@ -9,16 +9,32 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
+/**
+ * Server answering each request (id, message in UTF-8) with (id, message in uppercase).
+ * <p>
+ * The messages are uppercased by an {@link UpperCaseTransform}: the messages in ASCII, the usual
+ * case, are uppercased in place in the receive buffer and copied in the reply without any
+ * allocation.
+ */
 public class ServerIdUpperCaseUDP {
 
     private static final Logger logger = Logger.getLogger(ServerIdUpperCaseUDP.class.getName());
     private static final Charset UTF8 = StandardCharsets.UTF_8;
     private static final int BUFFER_SIZE = 1024;
+    private static final int BATCH_SIZE = 64;
     private final DatagramChannel dc;
     private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer sendBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final UpperCaseTransform transform = new UpperCaseTransform(BUFFER_SIZE);
+    private final ServerMetrics metrics;
+    // process, counted in the metrics
+    private final DatagramBatch.PacketHandler handler;
 
     public ServerIdUpperCaseUDP(int port) throws IOException {
+        metrics = new ServerMetrics("ServerIdUpperCaseUDP-" + port, false);
+        handler = metrics.instrument(this::process);
         dc = DatagramChannel.open();
         dc.bind(new InetSocketAddress(port));
         logger.info("ServerBetterUpperCaseUDP started on port " + port);
@@ -37,28 +53,60 @@ public class ServerIdUpperCaseUDP {
           5) send the packet to client
           */
             buff.clear();
-            var req = dc.receive(buff);
+            var req = (InetSocketAddress) dc.receive(buff);
             buff.flip();
-            if (buff.remaining() >= Long.BYTES) {
-
-                var id = buff.getLong();
-                var msg = UTF8.decode(buff).toString();
-                String upperCaseMsg = msg.toUpperCase();
-                var msgEncode = UTF8.encode(upperCaseMsg);
-                buff.clear();
-                buff.putLong(id);
-                buff.put(msgEncode);
-                buff.flip();
-                dc.send(buff, req);
+            sendBuff.clear();
+            if (handler.handle(buff, req, sendBuff)) {
+                sendBuff.flip();
+                dc.send(sendBuff, req);
             }
         }
     }
 
+    /**
+     * Same as serve() but receives and sends the datagrams by batches, see {@link DatagramBatch}.
+     *
+     * @throws IOException
+     */
+    public void serveBatched() throws IOException {
+        try (var batch = new DatagramBatch(dc, BATCH_SIZE, BUFFER_SIZE)) {
+            batch.serve(handler);
+        }
+    }
+
+    /**
+     * Treats a request and writes the reply to send back, if any, in sendBuff.
+     *
+     * @param buff the request in read mode
+     * @param req the sender of the request
+     * @param sendBuff the buffer in write mode where the reply is written
+     * @return true if the content of sendBuff must be sent to req
+     */
+    private boolean process(ByteBuffer buff, InetSocketAddress req, ByteBuffer sendBuff) {
+        if (buff.remaining() >= Long.BYTES) {
+
+            var id = buff.getLong();
+            sendBuff.putLong(id);
+            transform.upperCase(buff, sendBuff);
+            return true;
+        }
+        metrics.malformed();
+        return false;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     public static void usage() {
-        System.out.println("Usage : ServerIdUpperCaseUDP port");
+        System.out.println("Usage : ServerIdUpperCaseUDP port [-batch]");
     }
 
     public static void main(String[] args) throws IOException {
+        var batched = args.length > 0 && args[args.length - 1].equals("-batch");
+        if (batched) {
+            args = Arrays.copyOf(args, args.length - 1);
+        }
         if (args.length != 1) {
             usage();
             return;
@@ -75,6 +123,11 @@ public class ServerIdUpperCaseUDP {
             logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
             return;
         }
-        server.serve();
+        server.getMetrics().export(ServerMetrics.DEFAULT_DUMP_PERIOD);
+        if (batched) {
+            server.serveBatched();
+        } else {
+            server.serve();
+        }
     }
 }
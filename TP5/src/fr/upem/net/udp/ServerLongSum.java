@@ -3,122 +3,473 @@ package fr.upem.net.udp;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
+/**
+ * Server of the long sum protocol: a client sends the operands of a session in OP packets
+ * (1, sessionId, idPos, totalOper, value), each one acknowledged by an ACK (2, sessionId, idPos),
+ * and receives the sum in a RES (3, sessionId, sum) once all the operands have been received.
+ * <p>
+ * Selective acknowledgements extend the protocol for clients that do not want one ACK per
+ * operand:
+ * <ul>
+ *     <li>OP_NOACK (7, sessionId, idPos, totalOper, value) is an OP that is not acknowledged,
+ *     except by an unsolicited SACK from position 0 every {@value #SACK_INTERVAL} new operands
+ *     and by the RES at the end of the session;</li>
+ *     <li>SACK_REQ (6, sessionId, from) asks which operands have been received from position
+ *     from, the server answers with a SACK, or with the RES if the session is completed;</li>
+ *     <li>SACK (8, sessionId, from, to, n, n ranges (start, end)) tells that the positions of
+ *     the ranges, end excluded, have been received and that the other positions of [from, to)
+ *     are missing. from is the first missing position at or after the requested one, to is
+ *     the total of operands unless the ranges did not fit in one datagram, and it is
+ *     Long.MAX_VALUE for a session that the server does not know.</li>
+ * </ul>
+ * To send fewer packets, OPS (9, sessionId, firstPos, totalOper, count, count values) carries
+ * the operands of the positions [firstPos, firstPos + count), up to 124 of them in a datagram
+ * of 1024 bytes. It is acknowledged by ACKS (10, sessionId, firstPos, count), or by the RES.
+ * The clients that only use OP and ACK are not affected.
+ * <p>
+ * The bitmap of a session is allocated from the totalOper of its first packet, so the sessions
+ * of more than maxOperands operands are refused: their packets are malformed.
+ */
 public class ServerLongSum {
 
     private static final Logger logger = Logger.getLogger(ServerLongSum.class.getName());
     private static final int BUFFER_SIZE = 1024;
+    private static final int BATCH_SIZE = 64;
+    private static final int COMPLETED_CAPACITY = 1 << 16;
+    // the directory of the bitmap of such a session is 512 KB
+    public static final long DEFAULT_MAX_OPERANDS = 1L << 32;
     private final DatagramChannel dc;
     private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
     private final ByteBuffer sendBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private final HashMap<InetSocketAddress, HashMap<Long, ClientData>> map = new HashMap<>();
+    private final SessionTable<ClientData> sessions = new SessionTable<>();
+    private final CompletedSessions completed = new CompletedSessions(COMPLETED_CAPACITY);
+    private final ServerMetrics metrics;
+    private final long maxOperands;
+    // process, counted in the metrics
+    private final DatagramBatch.PacketHandler handler;
     private final byte OP_CODE = 1;
     private final byte ACK_CODE = 2;
     private final byte RES_CODE = 3;
+    private final byte SACK_REQ_CODE = 6;
+    private final byte OP_NOACK_CODE = 7;
+    private final byte SACK_CODE = 8;
+    private final byte OPS_CODE = 9;
+    private final byte ACKS_CODE = 10;
+    // number of operands received between two unsolicited SACK of a session sent with OP_NOACK
+    private static final int SACK_INTERVAL = 64;
 
     public ServerLongSum(int port) throws IOException {
-        dc = DatagramChannel.open();
+        this(port, DEFAULT_MAX_OPERANDS);
+    }
+
+    /**
+     * @param port the port the server is bound to
+     * @param maxOperands the largest number of operands of a session
+     */
+    public ServerLongSum(int port, long maxOperands) throws IOException {
+        this(DatagramChannel.open(), new ServerMetrics("ServerLongSum-" + port, true), maxOperands);
+        metrics.gauge("activeSessions", sessions::size);
         dc.bind(new InetSocketAddress(port));
         logger.info("ServerBetterUpperCaseUDP started on port " + port);
     }
 
+    private ServerLongSum(DatagramChannel dc, ServerMetrics metrics, long maxOperands) {
+        if (maxOperands <= 0) {
+            throw new IllegalArgumentException("maxOperands must be positive");
+        }
+        this.dc = dc;
+        this.metrics = metrics;
+        this.maxOperands = maxOperands;
+        this.handler = metrics.instrument(this::process);
+    }
+
+    /**
+     * Starts nbWorkers servers, each one with its own DatagramChannel bound on the same port
+     * with SO_REUSEPORT and its own thread. The kernel dispatches the datagrams by hashing
+     * the source address, so all the packets of a given client (and thus of all its sessions)
+     * are always received by the same worker: each worker keeps its own map of sessions and
+     * no state is shared between threads, except the metrics which are exported for all the
+     * workers.
+     *
+     * @param port the port the workers are bound to
+     * @param nbWorkers the number of workers
+     * @param batched true if the workers receive and send by batches
+     * @param maxOperands the largest number of operands of a session
+     * @throws IOException if one of the channels cannot be opened or bound
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+     */
+    public static void serveWithWorkers(int port, int nbWorkers, boolean batched, long maxOperands) throws IOException, InterruptedException {
+        if (nbWorkers < 1) {
+            throw new IllegalArgumentException("nbWorkers must be positive");
+        }
+        var workers = new ArrayList<Thread>(nbWorkers);
+        var servers = new ArrayList<ServerLongSum>(nbWorkers);
+        var metrics = new ServerMetrics("ServerLongSum-" + port, true);
+        metrics.gauge("activeSessions", () -> servers.stream().mapToLong(server -> server.sessions.size()).sum());
+        var channels = new ArrayList<DatagramChannel>(nbWorkers);
+        try {
+            for (var i = 0; i < nbWorkers; i++) {
+                var dc = DatagramChannel.open();
+                channels.add(dc);
+                if (!dc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+                }
+                dc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                dc.bind(new InetSocketAddress(port));
+                var server = new ServerLongSum(dc, metrics, maxOperands);
+                servers.add(server);
+                workers.add(new Thread(() -> {
+                    try {
+                        if (batched) {
+                            server.serveBatched();
+                        } else {
+                            server.serve();
+                        }
+                    } catch (IOException e) {
+                        logger.severe("Worker stopped : " + e);
+                    }
+                }, "ServerLongSum-worker-" + i));
+            }
+        } catch (IOException | RuntimeException e) {
+            // the channels already bound would keep the port
+            for (var dc : channels) {
+                try {
+                    dc.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+            throw e;
+        }
+        logger.info("ServerLongSum started on port " + port + " with " + nbWorkers + " workers");
+        metrics.export(ServerMetrics.DEFAULT_DUMP_PERIOD);
+        for (var worker : workers) {
+            worker.start();
+        }
+        try {
+            for (var worker : workers) {
+                worker.join();
+            }
+        } finally {
+            for (var worker : workers) {
+                worker.interrupt();
+            }
+            metrics.close();
+        }
+    }
+
     public void serve() throws IOException {
         while (!Thread.interrupted()) {
             buff.clear();
-            var res = dc.receive(buff);
+            var exp = (InetSocketAddress) dc.receive(buff);
             buff.flip();
-            if (buff.remaining() > Byte.BYTES) {
-                var op = buff.get();
-                if (op == OP_CODE) {
-                    if (buff.remaining() > Long.BYTES) {
-                        var sessionId = buff.getLong();
-                        if (buff.remaining() > Long.BYTES) {
-                            var idPos = buff.getLong();
-                            if (buff.remaining() > Long.BYTES) {
-                                var totalOper = buff.getLong();
-                                if (buff.remaining() >= Long.BYTES) {
-                                    var value = buff.getLong();
-                                    //VERIFIER SI SESSIONID EXISTE
-                                    var cd = new ClientData(totalOper);
-                                    HashMap<Long, ClientData> temp = new HashMap<>();
-                                    temp.put(sessionId, cd);
-                                    map.putIfAbsent((InetSocketAddress) res, temp);
-                                    if (!map.get(res).containsKey(sessionId)) {
-                                        map.get(res).put(sessionId, cd);
-                                    }
-
-                                    if (map.get(res).get(sessionId).update(value, idPos)) {
-                                        sendBuff.clear();
-                                        sendBuff.put(RES_CODE);
-                                        sendBuff.putLong(sessionId);
-                                        sendBuff.putLong(map.get(res).get(sessionId).getTotal());
-                                        sendBuff.flip();
-                                        dc.send(sendBuff, res);
-
-                                    } else {
-                                        sendBuff.clear();
-
-                                        sendBuff.put(ACK_CODE);
-                                        sendBuff.putLong(sessionId);
-                                        sendBuff.putLong(idPos);
-                                        sendBuff.flip();
-                                        dc.send(sendBuff, res);
-                                    }
-
-                                }
-                            }
-                        }
-                    }
-
-                }
+            sendBuff.clear();
+            if (handler.handle(buff, exp, sendBuff)) {
+                sendBuff.flip();
+                dc.send(sendBuff, exp);
             }
+        }
+        dc.close();
+    }
 
+    /**
+     * Same as serve() but receives and sends the datagrams by batches, see {@link DatagramBatch}.
+     *
+     * @throws IOException
+     */
+    public void serveBatched() throws IOException {
+        try (var batch = new DatagramBatch(dc, BATCH_SIZE, BUFFER_SIZE)) {
+            batch.serve(handler);
         }
         dc.close();
     }
 
+    /**
+     * Treats a request and writes the reply to send back, if any, in sendBuff.
+     *
+     * @param buff the request in read mode
+     * @param res the sender of the request
+     * @param sendBuff the buffer in write mode where the reply is written
+     * @return true if the content of sendBuff must be sent to res
+     */
+    private boolean process(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff) {
+        if (buff.remaining() < Byte.BYTES) {
+            return malformed();
+        }
+        switch (buff.get()) {
+            case OP_CODE:
+                return processOp(buff, res, sendBuff, true);
+            case OP_NOACK_CODE:
+                return processOp(buff, res, sendBuff, false);
+            case SACK_REQ_CODE:
+                return processSackRequest(buff, res, sendBuff);
+            case OPS_CODE:
+                return processOps(buff, res, sendBuff);
+            default:
+                return malformed();
+        }
+    }
+
+    /**
+     * Counts a malformed request, which is not answered.
+     *
+     * @return false
+     */
+    private boolean malformed() {
+        metrics.malformed();
+        return false;
+    }
+
+    private boolean processOp(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff, boolean ack) {
+        if (buff.remaining() < 4 * Long.BYTES) {
+            return malformed();
+        }
+        var sessionId = buff.getLong();
+        var idPos = buff.getLong();
+        var totalOper = buff.getLong();
+        var value = buff.getLong();
+        if (totalOper <= 0 || totalOper > maxOperands || idPos < 0 || idPos >= totalOper) {
+            return malformed();
+        }
+        var done = completed.indexOf(res, sessionId);
+        if (done >= 0) {
+            // the client did not receive the result, no need to look at the session
+            writeResult(sendBuff, sessionId, completed.getTotal(done));
+            return true;
+        }
+        var cd = sessions.get(res, sessionId);
+        if (cd == null) {
+            cd = new ClientData(totalOper);
+            sessions.put(res, sessionId, cd);
+        } else if (cd.getTotalOper() != totalOper) {
+            return malformed();
+        }
+
+        var received = cd.getReceived();
+        if (cd.update(value, idPos)) {
+            // the bitmap of the session is not needed anymore
+            sessions.remove(res, sessionId);
+            completed.put(res, sessionId, cd.getTotal());
+            writeResult(sendBuff, sessionId, cd.getTotal());
+            return true;
+        }
+        if (ack) {
+            sendBuff.put(ACK_CODE);
+            sendBuff.putLong(sessionId);
+            sendBuff.putLong(idPos);
+            return true;
+        }
+        if (cd.getReceived() != received && cd.getReceived() % SACK_INTERVAL == 0) {
+            // unsolicited report, so that the client learns about the gaps without asking
+            writeSack(sendBuff, sessionId, cd, 0);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean processOps(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff) {
+        if (buff.remaining() < 3 * Long.BYTES + Integer.BYTES) {
+            return malformed();
+        }
+        var sessionId = buff.getLong();
+        var firstPos = buff.getLong();
+        var totalOper = buff.getLong();
+        var count = buff.getInt();
+        // count * Long.BYTES would overflow for the largest counts
+        if (totalOper <= 0 || totalOper > maxOperands || firstPos < 0 || count <= 0 || count > totalOper - firstPos
+                || count > buff.remaining() / Long.BYTES) {
+            return malformed();
+        }
+        var done = completed.indexOf(res, sessionId);
+        if (done >= 0) {
+            writeResult(sendBuff, sessionId, completed.getTotal(done));
+            return true;
+        }
+        var cd = sessions.get(res, sessionId);
+        if (cd == null) {
+            cd = new ClientData(totalOper);
+            sessions.put(res, sessionId, cd);
+        } else if (cd.getTotalOper() != totalOper) {
+            // the positions of the packet may not fit in the bitmap of the session
+            return malformed();
+        }
+        if (cd.update(buff, firstPos, count)) {
+            sessions.remove(res, sessionId);
+            completed.put(res, sessionId, cd.getTotal());
+            writeResult(sendBuff, sessionId, cd.getTotal());
+            return true;
+        }
+        sendBuff.put(ACKS_CODE);
+        sendBuff.putLong(sessionId);
+        sendBuff.putLong(firstPos);
+        sendBuff.putInt(count);
+        return true;
+    }
+
+    private boolean processSackRequest(ByteBuffer buff, InetSocketAddress res, ByteBuffer sendBuff) {
+        if (buff.remaining() < 2 * Long.BYTES) {
+            return malformed();
+        }
+        var sessionId = buff.getLong();
+        var from = buff.getLong();
+        if (from < 0) {
+            return malformed();
+        }
+        var done = completed.indexOf(res, sessionId);
+        if (done >= 0) {
+            writeResult(sendBuff, sessionId, completed.getTotal(done));
+            return true;
+        }
+        writeSack(sendBuff, sessionId, sessions.get(res, sessionId), from);
+        return true;
+    }
+
+    private void writeResult(ByteBuffer sendBuff, long sessionId, long total) {
+        sendBuff.put(RES_CODE);
+        sendBuff.putLong(sessionId);
+        sendBuff.putLong(total);
+    }
+
+    /**
+     * Writes a SACK describing the operands of the session received from position from, with as
+     * many ranges as the buffer can hold. A session that is not known is reported as empty.
+     */
+    private void writeSack(ByteBuffer sendBuff, long sessionId, ClientData cd, long from) {
+        sendBuff.put(SACK_CODE);
+        sendBuff.putLong(sessionId);
+        if (cd == null) {
+            sendBuff.putLong(from);
+            sendBuff.putLong(Long.MAX_VALUE);
+            sendBuff.putInt(0);
+            return;
+        }
+        cd.writeRanges(sendBuff, from);
+    }
 
     public static class ClientData {
-        private final BitSet bs;
+        private final ChunkedBitSet bs;
         private long total;
-        private final long totalOPer;
 
         public ClientData(long totalOPer) {
-            this.bs = new BitSet((int) totalOPer);
-            this.totalOPer = totalOPer;
+            this.bs = new ChunkedBitSet(totalOPer);
         }
 
+        /**
+         * Adds the operand at position orderVal if it was not already received.
+         *
+         * @return true if all the operands of the session have been received
+         */
         public boolean update(long value, long orderVal) {
-            if (!bs.get((int) orderVal)) {
-                bs.set((int) orderVal);
+            if (orderVal >= 0 && orderVal < bs.size() && bs.set(orderVal)) {
                 total += value;
             }
+            return bs.isFull();
+        }
 
-            if (bs.cardinality() == totalOPer) {
-                return true;
+        /**
+         * Adds the count operands read from buff at the positions starting from firstPos,
+         * skipping the ones already received.
+         *
+         * @return true if all the operands of the session have been received
+         * @throws IndexOutOfBoundsException if firstPos + count is more than the total of operands
+         */
+        public boolean update(ByteBuffer buff, long firstPos, int count) {
+            for (var pos = firstPos; pos < firstPos + count; pos++) {
+                var value = buff.getLong();
+                if (bs.set(pos)) {
+                    total += value;
+                }
             }
-            return false;
+            return bs.isFull();
         }
 
         public long getTotal() {
             return total;
         }
+
+        /**
+         * @return the total of operands of the session
+         */
+        public long getTotalOper() {
+            return bs.size();
+        }
+
+        /**
+         * @return the number of operands received
+         */
+        public long getReceived() {
+            return bs.cardinality();
+        }
+
+        /**
+         * Writes the ranges of received positions from position from, in the format of a SACK
+         * (without its opcode and session id), as many as sendBuff can hold.
+         */
+        public void writeRanges(ByteBuffer sendBuff, long from) {
+            // all the positions before the first missing one are received, no need to list them
+            var pos = bs.nextClearBit(Math.min(from, bs.size()));
+            sendBuff.putLong(pos);
+            var toPosition = sendBuff.position();
+            sendBuff.putLong(bs.size());
+            var countPosition = sendBuff.position();
+            sendBuff.putInt(0);
+            var count = 0;
+            while (sendBuff.remaining() >= 2 * Long.BYTES) {
+                var start = bs.nextSetBit(pos);
+                if (start < 0) {
+                    pos = bs.size();
+                    break;
+                }
+                pos = bs.nextClearBit(start);
+                sendBuff.putLong(start);
+                sendBuff.putLong(pos);
+                count++;
+            }
+            if (pos < bs.size() && bs.nextSetBit(pos) >= 0) {
+                // some ranges did not fit, the report stops at the end of the last one
+                sendBuff.putLong(toPosition, pos);
+            }
+            sendBuff.putInt(countPosition, count);
+        }
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
     public static void usage() {
-        System.out.println("Usage : ServerIdUpperCaseUDP port");
+        System.out.println("Usage : ServerLongSum port [nbWorkers] [-batch] [-maxOper n]");
     }
 
-    public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var nbArgs = 0;
+        while (nbArgs < args.length && !args[nbArgs].startsWith("-")) {
+            nbArgs++;
+        }
+        var batched = false;
+        var maxOperands = DEFAULT_MAX_OPERANDS;
+        for (var i = nbArgs; i < args.length; i++) {
+            if (args[i].equals("-batch")) {
+                batched = true;
+            } else if (args[i].equals("-maxOper") && i + 1 < args.length) {
+                maxOperands = Long.parseLong(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        args = Arrays.copyOf(args, nbArgs);
+        if ((args.length != 1 && args.length != 2) || maxOperands <= 0) {
             usage();
             return;
         }
@@ -128,12 +479,25 @@ public class ServerLongSum {
             logger.severe("The port number must be between 1024 and 65535");
             return;
         }
+        if (args.length == 2) {
+            try {
+                serveWithWorkers(port, Integer.valueOf(args[1]), batched, maxOperands);
+            } catch (BindException e) {
+                logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
+            }
+            return;
+        }
         try {
-            server = new ServerLongSum(port);
+            server = new ServerLongSum(port, maxOperands);
         } catch (BindException e) {
             logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
             return;
         }
-        server.serve();
+        server.getMetrics().export(ServerMetrics.DEFAULT_DUMP_PERIOD);
+        if (batched) {
+            server.serveBatched();
+        } else {
+            server.serve();
+        }
     }
 }
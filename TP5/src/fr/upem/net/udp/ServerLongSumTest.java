@@ -0,0 +1,210 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+
+public class ServerLongSumTest {
+
+    private static ByteBuffer op(long sessionId, long idPos, long totalOper, long value) {
+        return ByteBuffer.allocate(1024).put((byte) 1).putLong(sessionId).putLong(idPos)
+                .putLong(totalOper).putLong(value).flip();
+    }
+
+    private static ByteBuffer ops(long sessionId, long firstPos, long totalOper, int count, long... values) {
+        var buff = ByteBuffer.allocate(1024).put((byte) 9).putLong(sessionId).putLong(firstPos)
+                .putLong(totalOper).putInt(count);
+        for (var value : values) {
+            buff.putLong(value);
+        }
+        return buff.flip();
+    }
+
+    private static int freePort() throws IOException {
+        try (var dc = DatagramChannel.open()) {
+            dc.bind(null);
+            return ((InetSocketAddress) dc.getLocalAddress()).getPort();
+        }
+    }
+
+    private static ByteBuffer opNoAck(long sessionId, long idPos, long totalOper, long value) {
+        return ByteBuffer.allocate(1024).put((byte) 7).putLong(sessionId).putLong(idPos)
+                .putLong(totalOper).putLong(value).flip();
+    }
+
+    private static ByteBuffer sackRequest(long sessionId, long from) {
+        return ByteBuffer.allocate(1024).put((byte) 6).putLong(sessionId).putLong(from).flip();
+    }
+
+    /**
+     * Starts a server on a daemon thread, to interrupt at the end of the test.
+     */
+    private static Thread startServer(ServerLongSum server) {
+        var thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                // closed by the interruption
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void send(DatagramSocket socket, InetSocketAddress serverAddress, ByteBuffer packet) throws IOException {
+        socket.send(new DatagramPacket(packet.array(), packet.limit(), serverAddress));
+    }
+
+    /**
+     * Sends the packet and returns the reply, in read mode.
+     */
+    private static ByteBuffer exchange(DatagramSocket socket, InetSocketAddress serverAddress, ByteBuffer packet)
+            throws IOException {
+        send(socket, serverAddress, packet);
+        var reply = new DatagramPacket(new byte[1024], 1024);
+        socket.receive(reply);
+        return ByteBuffer.wrap(reply.getData(), 0, reply.getLength());
+    }
+
+    /**
+     * Checks a SACK and its ranges, given as start and end positions.
+     */
+    private static void assertSack(ByteBuffer reply, long sessionId, long from, long to, long... ranges) {
+        assertEquals(8, reply.get());
+        assertEquals(sessionId, reply.getLong());
+        assertEquals(from, reply.getLong());
+        assertEquals(to, reply.getLong());
+        assertEquals(ranges.length / 2, reply.getInt());
+        for (var bound : ranges) {
+            assertEquals(bound, reply.getLong());
+        }
+        assertFalse(reply.hasRemaining());
+    }
+
+    private static void assertAcks(ByteBuffer reply, long sessionId, long firstPos, int count) {
+        assertEquals(10, reply.get());
+        assertEquals(sessionId, reply.getLong());
+        assertEquals(firstPos, reply.getLong());
+        assertEquals(count, reply.getInt());
+        assertFalse(reply.hasRemaining());
+    }
+
+    private static void assertResult(ByteBuffer reply, long sessionId, long total) {
+        assertEquals(3, reply.get());
+        assertEquals(sessionId, reply.getLong());
+        assertEquals(total, reply.getLong());
+        assertFalse(reply.hasRemaining());
+    }
+
+    /**
+     * Sends the packets, then an OP of a new session which must be acknowledged if the server is
+     * still running, and checks the number of malformed packets.
+     */
+    private static void assertServerSurvives(long malformed, ByteBuffer... packets) throws Exception {
+        var port = freePort();
+        var server = new ServerLongSum(port);
+        var thread = startServer(server);
+        try (var socket = new DatagramSocket()) {
+            // a server that died does not answer
+            socket.setSoTimeout(2000);
+            var serverAddress = new InetSocketAddress("localhost", port);
+            for (var packet : packets) {
+                send(socket, serverAddress, packet);
+            }
+            send(socket, serverAddress, op(2, 0, 2, 5));
+            var packet = new DatagramPacket(new byte[1024], 1024);
+            ByteBuffer reply;
+            do {
+                // the valid packets are answered too
+                socket.receive(packet);
+                reply = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+            } while (reply.getLong(Byte.BYTES) != 2);
+            assertEquals(2, reply.get());
+            assertEquals(2, reply.getLong());
+            assertEquals(0, reply.getLong());
+            assertEquals(malformed, (long) server.getMetrics().snapshot().get("malformed"));
+        } finally {
+            thread.interrupt();
+        }
+    }
+
+    @Test
+    public void opsBeyondTheSessionIsMalformed() throws Exception {
+        assertServerSurvives(1, op(1, 0, 10, 1), ops(1, 500, 1000, 1, 2));
+    }
+
+    @Test
+    public void opsWithHugeCountIsMalformed() throws Exception {
+        assertServerSurvives(1, ops(1, 0, 1L << 30, 1 << 29, 1, 2, 3));
+    }
+
+    @Test
+    public void tooManyOperandsIsMalformed() throws Exception {
+        assertServerSurvives(4, op(1, 0, Long.MAX_VALUE, 1), ops(3, 0, Long.MAX_VALUE, 1, 2),
+                op(4, 0, ServerLongSum.DEFAULT_MAX_OPERANDS + 1, 1), op(5, 0, 0, 1));
+    }
+
+    @Test
+    public void sackReportsOutOfOrderOperands() throws Exception {
+        var port = freePort();
+        var thread = startServer(new ServerLongSum(port));
+        try (var socket = new DatagramSocket()) {
+            socket.setSoTimeout(2000);
+            var serverAddress = new InetSocketAddress("localhost", port);
+            // not acknowledged, the SACK_REQ that follows is treated after them
+            for (var pos : new long[]{7, 2, 3, 9}) {
+                send(socket, serverAddress, opNoAck(1, pos, 10, pos));
+            }
+            assertSack(exchange(socket, serverAddress, sackRequest(1, 0)), 1, 0, 10, 2, 4, 7, 8, 9, 10);
+            // from is moved to the first missing position
+            assertSack(exchange(socket, serverAddress, sackRequest(1, 3)), 1, 4, 10, 7, 8, 9, 10);
+            assertAcks(exchange(socket, serverAddress, ops(1, 0, 10, 2, 0, 1)), 1, 0, 2);
+            assertSack(exchange(socket, serverAddress, sackRequest(1, 0)), 1, 4, 10, 7, 8, 9, 10);
+            // positions already received are not added twice
+            assertAcks(exchange(socket, serverAddress, ops(1, 3, 10, 3, 3, 4, 5)), 1, 3, 3);
+            assertSack(exchange(socket, serverAddress, sackRequest(1, 0)), 1, 6, 10, 7, 8, 9, 10);
+            assertAcks(exchange(socket, serverAddress, ops(1, 6, 10, 1, 6)), 1, 6, 1);
+            assertResult(exchange(socket, serverAddress, op(1, 8, 10, 8)), 1, 45);
+            // the completed session answers with its result
+            assertResult(exchange(socket, serverAddress, sackRequest(1, 0)), 1, 45);
+            assertSack(exchange(socket, serverAddress, sackRequest(2, 5)), 2, 5, Long.MAX_VALUE);
+        } finally {
+            thread.interrupt();
+        }
+    }
+
+    @Test
+    public void sackRangesAreCappedByTheDatagram() throws Exception {
+        var port = freePort();
+        var thread = startServer(new ServerLongSum(port));
+        try (var socket = new DatagramSocket()) {
+            socket.setSoTimeout(2000);
+            var serverAddress = new InetSocketAddress("localhost", port);
+            // 70 ranges of one operand, the odd positions of [0, 140)
+            var ranges = new long[140];
+            for (var pos = 1; pos < 140; pos += 2) {
+                assertAcks(exchange(socket, serverAddress, ops(1, pos, 200, 1, pos)), 1, pos, 1);
+                ranges[pos - 1] = pos;
+                ranges[pos] = pos + 1;
+            }
+            // (1024 - 29) / 16 = 62 ranges fit in a datagram, to is the end of the last one
+            var first = Arrays.copyOfRange(ranges, 0, 2 * 62);
+            assertSack(exchange(socket, serverAddress, sackRequest(1, 0)), 1, 0, 124, first);
+            var last = Arrays.copyOfRange(ranges, 2 * 62, ranges.length);
+            assertSack(exchange(socket, serverAddress, sackRequest(1, 124)), 1, 124, 200, last);
+        } finally {
+            thread.interrupt();
+        }
+    }
+}
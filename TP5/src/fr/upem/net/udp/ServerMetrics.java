@@ -0,0 +1,399 @@
+package fr.upem.net.udp;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Metrics of a server: packets and bytes received and sent, malformed requests, dropped
+ * replies, requests by opcode and the time spent treating a request, plus the counters, gauges
+ * and histograms a server registers by name.
+ * <p>
+ * The counters are {@link LongAdder}s and the histograms are lock-free, so several threads
+ * (the workers of ServerLongSum) can update the same metrics, and reading them never slows
+ * down the server. The metrics can be exported over JMX and dumped periodically to the log,
+ * see {@link #export(long)}. A gauge reads the state of the server without synchronization, so
+ * its value may be slightly stale.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ServerMetrics implements DynamicMBean {
+
+    private static final Logger logger = Logger.getLogger(ServerMetrics.class.getName());
+    public static final long DEFAULT_DUMP_PERIOD = 60_000;
+    private static final int OPCODES = 256;
+
+    private final String name;
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // null if the requests of the server do not start with an opcode
+    private final LongAdder[] opcodes;
+    private final Histogram serviceTime = new Histogram();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+    private ScheduledExecutorService dumper;
+
+    /**
+     * @param name the name of the server, used in the JMX name and in the dumps
+     * @param countOpcodes true if the first byte of the requests is an opcode to count
+     */
+    public ServerMetrics(String name, boolean countOpcodes) {
+        this.name = name;
+        if (countOpcodes) {
+            opcodes = new LongAdder[OPCODES];
+            for (var i = 0; i < OPCODES; i++) {
+                opcodes[i] = new LongAdder();
+            }
+        } else {
+            opcodes = null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Counts a request received, and its opcode.
+     *
+     * @param request the request in read mode, its position is unchanged
+     * @return the time of the reception, to give to {@link #requestTreated(long)}
+     */
+    public long requestReceived(ByteBuffer request) {
+        if (opcodes != null && request.hasRemaining()) {
+            opcodes[request.get(request.position()) & 0xFF].increment();
+        }
+        return requestReceived(request.remaining());
+    }
+
+    /**
+     * Counts a request of the given size received, without looking at its opcode.
+     *
+     * @return the time of the reception, to give to {@link #requestTreated(long)}
+     */
+    public long requestReceived(int bytes) {
+        packetsIn.increment();
+        bytesIn.add(bytes);
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the service time of a request, once its reply is ready to be sent.
+     *
+     * @param start the value returned by {@link #requestReceived(ByteBuffer)}
+     */
+    public void requestTreated(long start) {
+        serviceTime.record(System.nanoTime() - start);
+    }
+
+    public void replySent(int bytes) {
+        packetsOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Counts a request that is too short or has invalid fields.
+     */
+    public void malformed() {
+        malformed.increment();
+    }
+
+    /**
+     * Counts a request or a reply dropped by the server, for instance because a queue is full.
+     */
+    public void dropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Wraps handler to count the requests and the replies that it treats.
+     */
+    public DatagramBatch.PacketHandler instrument(DatagramBatch.PacketHandler handler) {
+        return (request, exp, reply) -> {
+            var start = requestReceived(request);
+            var send = handler.handle(request, exp, reply);
+            requestTreated(start);
+            if (send) {
+                replySent(reply.position());
+            }
+            return send;
+        };
+    }
+
+    /**
+     * @return the counter with the given name, created on the first call
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Registers a value of the server, read each time the metrics are exported.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return the histogram with the given name, created on the first call
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * @return the current value of all the metrics, by name
+     */
+    public Map<String, Long> snapshot() {
+        var values = new LinkedHashMap<String, Long>();
+        suppliers().forEach((name, value) -> values.put(name, value.getAsLong()));
+        return values;
+    }
+
+    private Map<String, LongSupplier> suppliers() {
+        var suppliers = new LinkedHashMap<String, LongSupplier>();
+        suppliers.put("packetsIn", packetsIn::sum);
+        suppliers.put("packetsOut", packetsOut::sum);
+        suppliers.put("bytesIn", bytesIn::sum);
+        suppliers.put("bytesOut", bytesOut::sum);
+        suppliers.put("malformed", malformed::sum);
+        suppliers.put("dropped", dropped::sum);
+        if (opcodes != null) {
+            for (var i = 0; i < OPCODES; i++) {
+                var counter = opcodes[i];
+                // only the opcodes seen so far
+                if (counter.sum() != 0) {
+                    suppliers.put("opcode" + i, counter::sum);
+                }
+            }
+        }
+        counters.forEach((name, counter) -> suppliers.put(name, counter::sum));
+        gauges.forEach(suppliers::put);
+        serviceTime.addTo(suppliers, "serviceTimeNanos");
+        histograms.forEach((name, histogram) -> histogram.addTo(suppliers, name));
+        return suppliers;
+    }
+
+    /**
+     * @return the metrics as lines "name value"
+     */
+    public String dump() {
+        var builder = new StringBuilder();
+        snapshot().forEach((name, value) -> builder.append(name).append(' ').append(value).append('\n'));
+        return builder.toString();
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server and logs them every dumpPeriod
+     * milliseconds, until {@link #close()} is called.
+     */
+    public synchronized void export(long dumpPeriod) {
+        if (dumper != null) {
+            throw new IllegalStateException("already exported");
+        }
+        try {
+            objectName = new ObjectName(getClass().getPackageName() + ":type=ServerMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warning("Metrics of " + name + " not exported over JMX : " + e);
+            objectName = null;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            var thread = new Thread(task, "metrics-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> logger.info("Metrics of " + name + "\n" + dump()),
+                dumpPeriod, dumpPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops exporting the metrics.
+     */
+    public synchronized void close() {
+        if (dumper == null) {
+            return;
+        }
+        dumper.shutdownNow();
+        dumper = null;
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already unregistered
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        var value = suppliers().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value.getAsLong();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read-only attribute " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        var suppliers = suppliers();
+        var list = new AttributeList();
+        for (var attribute : attributes) {
+            var value = suppliers.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value.getAsLong()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        var attributes = suppliers().keySet().stream()
+                .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(getClass().getName(), "Metrics of " + name, attributes, null, null, null);
+    }
+
+    /**
+     * Histogram of positive values with a relative error below 1 / {@value #SUB_BUCKETS}.
+     * <p>
+     * The values are counted in buckets whose width doubles every {@value #SUB_BUCKETS}
+     * buckets, as in HdrHistogram: each power of two is split in {@value #SUB_BUCKETS} buckets
+     * of the same width. Recording a value increments one element of an AtomicLongArray, so the
+     * histogram is lock-free.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        // the positive longs have at most 63 significant bits
+        private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * @param value the value to record, the negative ones are recorded as 0
+         */
+        public void record(long value) {
+            value = Math.max(value, 0);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long mean() {
+            var n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the highest value of the bucket holding the given percentile, 0 if the
+         * histogram is empty
+         */
+        public long percentile(double percentile) {
+            var total = 0L;
+            var snapshot = new long[BUCKETS];
+            for (var i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            var rank = (long) Math.ceil(total * Math.min(percentile, 100) / 100);
+            var seen = 0L;
+            for (var i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(rank, 1)) {
+                    // the bucket may go beyond the largest value recorded
+                    return Math.min(highestValue(i), max());
+                }
+            }
+            return max();
+        }
+
+        private void addTo(Map<String, LongSupplier> suppliers, String name) {
+            suppliers.put(name + ".count", this::count);
+            suppliers.put(name + ".mean", this::mean);
+            suppliers.put(name + ".p50", () -> percentile(50));
+            suppliers.put(name + ".p99", () -> percentile(99));
+            suppliers.put(name + ".p999", () -> percentile(99.9));
+            suppliers.put(name + ".max", this::max);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            var exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            var sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long lowestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            var exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        }
+
+        static long highestValue(int bucket) {
+            return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+        }
+    }
+}
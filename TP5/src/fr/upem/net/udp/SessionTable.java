@@ -0,0 +1,197 @@
+package fr.upem.net.udp;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Hash table associating a value to a session identified by the address of the client and the
+ * id of the session, without boxing the id nor allocating anything on lookups.
+ * <p>
+ * The table uses open addressing with linear probing over parallel arrays: the hash of the
+ * address and the session id are compared as primitives first, and the address itself is only
+ * compared with equals() when they match. Removal uses backward shifting, so there are no
+ * tombstones and lookups stay short after many sessions have been removed.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <T> the type of the values
+ */
+public class SessionTable<T> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private InetSocketAddress[] addresses;
+    private int[] hashes;
+    private long[] sessionIds;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public SessionTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the number of sessions the table can hold without being resized
+     */
+    public SessionTable(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("expectedSize must be positive");
+        }
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * @return the number of sessions in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value associated to the session, or null if the session is not in the table.
+     */
+    public T get(InetSocketAddress address, long sessionId) {
+        var slot = find(address, address.hashCode(), sessionId);
+        return slot < 0 ? null : value(slot);
+    }
+
+    /**
+     * Associates the value to the session, replacing the previous value if any.
+     *
+     * @return the previous value associated to the session, or null
+     */
+    public T put(InetSocketAddress address, long sessionId, T value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        var addressHash = address.hashCode();
+        var slot = find(address, addressHash, sessionId);
+        if (slot >= 0) {
+            var previous = value(slot);
+            values[slot] = value;
+            return previous;
+        }
+        if (2 * (size + 1) > values.length) {
+            resize(2 * values.length);
+        }
+        insert(address, addressHash, sessionId, value);
+        size++;
+        return null;
+    }
+
+    /**
+     * Removes the session from the table.
+     *
+     * @return the value that was associated to the session, or null
+     */
+    public T remove(InetSocketAddress address, long sessionId) {
+        var slot = find(address, address.hashCode(), sessionId);
+        if (slot < 0) {
+            return null;
+        }
+        var previous = value(slot);
+        shiftBackFrom(slot);
+        size--;
+        return previous;
+    }
+
+    /**
+     * Removes all the sessions.
+     */
+    public void clear() {
+        Arrays.fill(addresses, null);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private int find(InetSocketAddress address, int addressHash, long sessionId) {
+        for (var slot = indexFor(addressHash, sessionId); values[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == addressHash && sessionIds[slot] == sessionId && addresses[slot].equals(address)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(InetSocketAddress address, int addressHash, long sessionId, Object value) {
+        var slot = indexFor(addressHash, sessionId);
+        while (values[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        addresses[slot] = address;
+        hashes[slot] = addressHash;
+        sessionIds[slot] = sessionId;
+        values[slot] = value;
+    }
+
+    /**
+     * Empties the slot and moves back the following entries of the cluster that can no longer
+     * be reached from their home slot.
+     */
+    private void shiftBackFrom(int hole) {
+        var slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == null) {
+                break;
+            }
+            var home = indexFor(hashes[slot], sessionIds[slot]);
+            // the entry can move to the hole only if its home is not in (hole, slot]
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                addresses[hole] = addresses[slot];
+                hashes[hole] = hashes[slot];
+                sessionIds[hole] = sessionIds[slot];
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+        addresses[hole] = null;
+        values[hole] = null;
+    }
+
+    private void resize(int capacity) {
+        var oldAddresses = addresses;
+        var oldHashes = hashes;
+        var oldSessionIds = sessionIds;
+        var oldValues = values;
+        allocate(capacity);
+        for (var i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                insert(oldAddresses[i], oldHashes[i], oldSessionIds[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        addresses = new InetSocketAddress[capacity];
+        hashes = new int[capacity];
+        sessionIds = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private int indexFor(int addressHash, long sessionId) {
+        var h = addressHash * 31 + Long.hashCode(sessionId);
+        // murmur3 finalizer, spreads consecutive session ids over the whole table
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T value(int slot) {
+        return (T) values[slot];
+    }
+
+    private static int capacityFor(int expectedSize) {
+        var capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,114 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class SessionTableTest {
+
+    // the hashCode of an InetSocketAddress is the one of its address plus its port
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 1001);
+    private static final InetSocketAddress SAME_HASH = new InetSocketAddress("127.0.0.2", 1000);
+
+    @Test
+    public void putGetRemove() {
+        var table = new SessionTable<String>();
+        assertNull(table.get(CLIENT, 1));
+        assertNull(table.put(CLIENT, 1, "a"));
+        assertNull(table.put(CLIENT, 2, "b"));
+        assertEquals("a", table.get(CLIENT, 1));
+        assertEquals("b", table.get(CLIENT, 2));
+        assertEquals(2, table.size());
+        assertEquals("a", table.put(CLIENT, 1, "c"));
+        assertEquals("c", table.get(CLIENT, 1));
+        assertEquals(2, table.size());
+        assertEquals("c", table.remove(CLIENT, 1));
+        assertNull(table.remove(CLIENT, 1));
+        assertNull(table.get(CLIENT, 1));
+        assertEquals(1, table.size());
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(CLIENT, 2));
+        assertThrows(NullPointerException.class, () -> table.put(CLIENT, 3, null));
+    }
+
+    @Test
+    public void collidingKeysAreDistinct() {
+        assertEquals(CLIENT.hashCode(), SAME_HASH.hashCode());
+        var table = new SessionTable<String>();
+        table.put(CLIENT, 7, "client");
+        table.put(SAME_HASH, 7, "same hash");
+        assertEquals(2, table.size());
+        assertEquals("client", table.get(CLIENT, 7));
+        assertEquals("same hash", table.get(SAME_HASH, 7));
+        // the second one was probed after the first one, and is moved back by the removal
+        assertEquals("client", table.remove(CLIENT, 7));
+        assertEquals("same hash", table.get(SAME_HASH, 7));
+        assertNull(table.get(CLIENT, 7));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void removalKeepsTheClustersReachable() {
+        // the two sessions of each id have the same home slot, so the removed ones are in clusters
+        var table = new SessionTable<Long>();
+        for (var id = 0L; id < 8; id++) {
+            table.put(CLIENT, id, id);
+            table.put(SAME_HASH, id, -id);
+        }
+        for (var id = 0L; id < 8; id += 2) {
+            assertEquals(id, (long) table.remove(CLIENT, id));
+        }
+        for (var id = 0L; id < 8; id++) {
+            assertEquals(id % 2 == 0 ? null : Long.valueOf(id), table.get(CLIENT, id));
+            assertEquals(-id, (long) table.get(SAME_HASH, id));
+        }
+    }
+
+    @Test
+    public void resizeKeepsAllTheSessions() {
+        var table = new SessionTable<Long>(1);
+        for (var id = 0L; id < 10_000; id++) {
+            table.put(CLIENT, id, id);
+        }
+        assertEquals(10_000, table.size());
+        for (var id = 0L; id < 10_000; id++) {
+            assertEquals(id, (long) table.get(CLIENT, id));
+        }
+        assertNull(table.get(CLIENT, 10_000));
+    }
+
+    @Test
+    public void sameAsHashMap() {
+        var random = new Random(0);
+        var table = new SessionTable<Integer>();
+        var expected = new HashMap<Map.Entry<InetSocketAddress, Long>, Integer>();
+        var addresses = new InetSocketAddress[]{CLIENT, SAME_HASH, new InetSocketAddress("10.0.0.1", 5000)};
+        for (var i = 0; i < 100_000; i++) {
+            var address = addresses[random.nextInt(addresses.length)];
+            // few distinct ids, so that the operations often hit an existing session
+            var id = (long) random.nextInt(300);
+            var key = Map.entry(address, id);
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(key, i), table.put(address, id, i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), table.remove(address, id));
+                    break;
+                default:
+                    assertEquals(expected.get(key), table.get(address, id));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        expected.forEach((key, value) -> assertEquals(value, table.get(key.getKey(), key.getValue())));
+    }
+}
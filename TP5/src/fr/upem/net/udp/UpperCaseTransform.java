@@ -0,0 +1,119 @@
+package fr.upem.net.udp;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+/**
+ * Uppercase of messages encoded in UTF-8, from a buffer to another.
+ * <p>
+ * The messages in ASCII are uppercased in place, 8 bytes at a time with {@link AsciiCase}, and
+ * copied without any allocation. The other ones are decoded and encoded with a decoder, an
+ * encoder and a CharBuffer allocated once, and uppercased char by char, unless they contain one
+ * of the few chars that String.toUpperCase uppercases differently.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class UpperCaseTransform {
+
+    private static final Logger logger = Logger.getLogger(UpperCaseTransform.class.getName());
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    // the chars that String.toUpperCase does not uppercase as Character.toUpperCase does
+    private static final BitSet SPECIAL_CASING = new BitSet(Character.MAX_VALUE + 1);
+
+    static {
+        for (var c = 0; c <= Character.MAX_VALUE; c++) {
+            var upperCase = String.valueOf((char) c).toUpperCase();
+            if (upperCase.length() != 1 || upperCase.charAt(0) != Character.toUpperCase((char) c)) {
+                SPECIAL_CASING.set(c);
+            }
+        }
+    }
+
+    // used for the messages that are not ASCII
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetEncoder encoder = UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars;
+
+    /**
+     * @param maxSize the maximum size in bytes of a message, a message of n bytes never decodes
+     *                to more than n chars
+     */
+    public UpperCaseTransform(int maxSize) {
+        this.chars = CharBuffer.allocate(maxSize);
+    }
+
+    /**
+     * Writes in dst, in write mode, the uppercase of the message in UTF-8 in src, in read mode.
+     * The content of src is modified. If the uppercase does not fit in dst, it is truncated
+     * after the last char that fits.
+     */
+    public void upperCase(ByteBuffer src, ByteBuffer dst) {
+        if (AsciiCase.upperCaseInPlace(src)) {
+            if (src.remaining() > dst.remaining()) {
+                src.limit(src.position() + dst.remaining());
+            }
+            dst.put(src);
+            return;
+        }
+        upperCaseUtf8(src, dst);
+    }
+
+    /**
+     * Decodes the message in buff, uppercases it and encodes it in sendBuff, with the decoder,
+     * the encoder and the CharBuffer of the transform.
+     */
+    private void upperCaseUtf8(ByteBuffer buff, ByteBuffer sendBuff) {
+        chars.clear();
+        decoder.reset();
+        decoder.decode(buff, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        CharBuffer upperCaseChars = chars;
+        if (!upperCaseInPlace(chars)) {
+            upperCaseChars = CharBuffer.wrap(chars.toString().toUpperCase());
+        }
+        encoder.reset();
+        if (encoder.encode(upperCaseChars, sendBuff, true).isOverflow()) {
+            logger.fine("Uppercase message does not fit in a datagram, truncated");
+        }
+        encoder.flush(sendBuff);
+    }
+
+    /**
+     * Uppercases the chars in place, code point by code point.
+     *
+     * @return false if a char is uppercased differently by String.toUpperCase, like the German
+     * sharp s which becomes "SS", in which case String.toUpperCase must be used
+     */
+    private static boolean upperCaseInPlace(CharBuffer chars) {
+        for (var i = 0; i < chars.limit(); i++) {
+            var c = chars.get(i);
+            if (Character.isHighSurrogate(c) && i + 1 < chars.limit() && Character.isLowSurrogate(chars.get(i + 1))) {
+                var upperCase = Character.toUpperCase(Character.toCodePoint(c, chars.get(i + 1)));
+                if (!Character.isSupplementaryCodePoint(upperCase)) {
+                    return false;
+                }
+                chars.put(i, Character.highSurrogate(upperCase));
+                chars.put(i + 1, Character.lowSurrogate(upperCase));
+                i++;
+                continue;
+            }
+            if (SPECIAL_CASING.get(c)) {
+                return false;
+            }
+            chars.put(i, Character.toUpperCase(c));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,110 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded FIFO of replies waiting to be sent, each one made of a destination and a payload.
+ * <p>
+ * The payloads are stored in a ring of direct buffers allocated once, so queuing a reply
+ * never allocates. A reply is written directly in the buffer returned by {@link #reserve()}
+ * and then queued with {@link #commit(InetSocketAddress)}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class ReplyQueue {
+
+    private final ByteBuffer[] payloads;
+    private final InetSocketAddress[] destinations;
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity the maximum number of replies in the queue
+     * @param bufferSize the maximum size of a reply
+     */
+    public ReplyQueue(int capacity, int bufferSize) {
+        if (capacity < 1 || bufferSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        payloads = new ByteBuffer[capacity];
+        destinations = new InetSocketAddress[capacity];
+        for (var i = 0; i < capacity; i++) {
+            payloads[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == payloads.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the buffer of the next free slot, cleared and in write mode.
+     * The reply is only queued when {@link #commit(InetSocketAddress)} is called.
+     *
+     * @throws IllegalStateException if the queue is full
+     */
+    public ByteBuffer reserve() {
+        if (isFull()) {
+            throw new IllegalStateException("queue is full");
+        }
+        var buffer = payloads[(head + size) % payloads.length];
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Queues the reply written in the buffer returned by the last call to {@link #reserve()}.
+     *
+     * @param destination the address the reply must be sent to
+     */
+    public void commit(InetSocketAddress destination) {
+        if (isFull()) {
+            throw new IllegalStateException("queue is full");
+        }
+        var tail = (head + size) % payloads.length;
+        payloads[tail].flip();
+        destinations[tail] = destination;
+        size++;
+    }
+
+    /**
+     * @return the payload of the oldest reply, in read mode
+     */
+    public ByteBuffer peekPayload() {
+        checkNotEmpty();
+        return payloads[head];
+    }
+
+    /**
+     * @return the destination of the oldest reply
+     */
+    public InetSocketAddress peekDestination() {
+        checkNotEmpty();
+        return destinations[head];
+    }
+
+    /**
+     * Removes the oldest reply.
+     */
+    public void remove() {
+        checkNotEmpty();
+        destinations[head] = null;
+        head = (head + 1) % payloads.length;
+        size--;
+    }
+
+    private void checkNotEmpty() {
+        if (isEmpty()) {
+            throw new IllegalStateException("queue is empty");
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package fr.upem.net.udp.nonblocking;
+
+import fr.upem.net.udp.FreeLongSumSessions;
+import fr.upem.net.udp.ServerMetrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.logging.Logger;
+
+/**
+ * Nonblocking version of the FreeLongSum server.
+ * <p>
+ * The replies (ACK, RES and ACKCLEAN) are stored in a bounded {@link ReplyQueue}, so the
+ * channel stays interested in OP_READ while replies are waiting: a full socket send buffer
+ * no longer stops the server from receiving. When the queue is full, the request is still
+ * treated but its reply is dropped; the client will retransmit.
+ */
+public class ServerFreeLongSumUDP {
+
+    private static final Logger logger = Logger.getLogger(ServerFreeLongSumUDP.class.getName());
+    private static final int BUFFER_SIZE = 1024;
+    private static final int QUEUE_CAPACITY = 1024;
+    // maximum number of datagrams received for one selection, so that replies get sent
+    private static final int MAX_READS = 64;
+
+    private final DatagramChannel dc;
+    private final Selector selector;
+    private final SelectionKey uniqueKey;
+    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer dropBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ReplyQueue queue = new ReplyQueue(QUEUE_CAPACITY, BUFFER_SIZE);
+    private final FreeLongSumSessions sessions;
+    private final ServerMetrics metrics;
+    private final int port;
+    private long droppedReplies;
+
+    public ServerFreeLongSumUDP(int port) throws IOException {
+        this(port, FreeLongSumSessions.DEFAULT_IDLE_TIMEOUT, FreeLongSumSessions.DEFAULT_MAX_MEMORY);
+    }
+
+    public ServerFreeLongSumUDP(int port, long idleTimeout, long maxMemory) throws IOException {
+        this.port = port;
+        this.metrics = new ServerMetrics("ServerFreeLongSumUDP-" + port, true);
+        this.sessions = new FreeLongSumSessions(idleTimeout, maxMemory, metrics);
+        metrics.gauge("replyQueueSize", queue::size);
+        selector = Selector.open();
+        dc = DatagramChannel.open();
+        dc.bind(new InetSocketAddress(port));
+        dc.configureBlocking(false);
+        uniqueKey = dc.register(selector, SelectionKey.OP_READ);
+    }
+
+    public void serve() throws IOException {
+        logger.info("ServerFreeLongSumUDP started on port " + port);
+        while (!Thread.interrupted()) {
+            try {
+                selector.select(this::treatKey, sessions.getIdleTimeout());
+            } catch (UncheckedIOException tunneled) {
+                throw tunneled.getCause();
+            }
+            sessions.expireSessions(System.currentTimeMillis());
+            updateInterestOps();
+        }
+        dc.close();
+    }
+
+    private void treatKey(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isWritable()) {
+                doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                doRead();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void updateInterestOps() {
+        if (queue.isEmpty()) {
+            uniqueKey.interestOps(SelectionKey.OP_READ);
+        } else {
+            uniqueKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void doRead() throws IOException {
+        for (var i = 0; i < MAX_READS; i++) {
+            buff.clear();
+            var exp = (InetSocketAddress) dc.receive(buff);
+            if (exp == null) {
+                return;
+            }
+            buff.flip();
+            var start = metrics.requestReceived(buff);
+            if (queue.isFull()) {
+                // the request still updates the session, only its reply is lost
+                dropBuff.clear();
+                if (sessions.process(buff, exp, dropBuff)) {
+                    droppedReplies++;
+                    metrics.dropped();
+                    logger.fine("Reply queue full, reply to " + exp + " dropped");
+                }
+            } else if (sessions.process(buff, exp, queue.reserve())) {
+                queue.commit(exp);
+            }
+            metrics.requestTreated(start);
+        }
+    }
+
+    private void doWrite() throws IOException {
+        while (!queue.isEmpty()) {
+            var payload = queue.peekPayload();
+            var size = payload.remaining();
+            dc.send(payload, queue.peekDestination());
+            if (payload.hasRemaining()) {
+                // the send buffer of the socket is full
+                return;
+            }
+            metrics.replySent(size);
+            queue.remove();
+        }
+    }
+
+    /**
+     * @return the number of replies dropped because the reply queue was full
+     */
+    public long getDroppedReplies() {
+        return droppedReplies;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public static void usage() {
+        System.out.println("Usage : ServerFreeLongSumUDP port [idleTimeoutMillis maxMemoryKB]");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 3) {
+            usage();
+            return;
+        }
+        ServerFreeLongSumUDP server;
+        int port = Integer.valueOf(args[0]);
+        if (!(port >= 1024) & port <= 65535) {
+            logger.severe("The port number must be between 1024 and 65535");
+            return;
+        }
+        var idleTimeout = FreeLongSumSessions.DEFAULT_IDLE_TIMEOUT;
+        var maxMemory = FreeLongSumSessions.DEFAULT_MAX_MEMORY;
+        if (args.length == 3) {
+            idleTimeout = Long.valueOf(args[1]);
+            maxMemory = Long.valueOf(args[2]) * 1024;
+        }
+        try {
+            server = new ServerFreeLongSumUDP(port, idleTimeout, maxMemory);
+        } catch (BindException e) {
+            logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
+            return;
+        }
+        server.getMetrics().export(ServerMetrics.DEFAULT_DUMP_PERIOD);
+        server.serve();
+    }
+}
@@ -18,12 +18,20 @@ public class ServerEcho {
     private final DatagramChannel dc;
     private final Selector selector;
     private final int BUFFER_SIZE = 1024;
+    private final int QUEUE_CAPACITY = 256;
+    // maximum number of datagrams received for one selection, so that replies get sent
+    private final int MAX_READS = 256;
     private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private SocketAddress exp;
+    private final ReplyQueue queue = new ReplyQueue(QUEUE_CAPACITY, BUFFER_SIZE);
+    private final ServerMetrics metrics;
+    private long dropped;
+    private boolean overflowing;
     private int port;
 
     public ServerEcho(int port) throws IOException {
         this.port=port;
+        metrics = new ServerMetrics("ServerEcho-" + port, false);
+        metrics.gauge("replyQueueSize", queue::size);
         selector = Selector.open();
         dc = DatagramChannel.open();
         dc.bind(new InetSocketAddress(port));
@@ -56,35 +64,67 @@ public class ServerEcho {
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-
+        if (key.isValid()) {
+            key.interestOps(queue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
     }
 
     private void doRead(SelectionKey key) throws IOException {
-        buff.clear();
-   		exp = dc.receive(buff);
-   		if(exp != null){
-            System.out.println("Packet received !");
-        }
-   		else{
-            System.out.println("No packets");
-            return;
+        for (var i = 0; i < MAX_READS; i++) {
+            if (queue.isFull()) {
+                buff.clear();
+                if (dc.receive(buff) == null) {
+                    return;
+                }
+                metrics.requestReceived(buff.position());
+                drop();
+                continue;
+            }
+            var reply = queue.reserve();
+            var exp = (InetSocketAddress) dc.receive(reply);
+            if (exp == null) {
+                return;
+            }
+            var start = metrics.requestReceived(reply.position());
+            queue.commit(exp);
+            metrics.requestTreated(start);
+            overflowing = false;
         }
-   		key.interestOps(SelectionKey.OP_WRITE);
 	 }
 
     private void doWrite(SelectionKey key) throws IOException {
-        buff.flip();
-   		dc.send(buff, exp);
-   		if(!buff.hasRemaining()){
-            System.out.println("Packet sent !");
-        }
-   		else{
-            System.out.println("No packet sent");
-            return;
+        while (!queue.isEmpty()) {
+            var reply = queue.peekPayload();
+            var size = reply.remaining();
+            dc.send(reply, queue.peekDestination());
+            if (reply.hasRemaining()) {
+                return;
+            }
+            metrics.replySent(size);
+            queue.remove();
         }
-        key.interestOps(SelectionKey.OP_READ);
 	}
 
+    private void drop() {
+        dropped++;
+        metrics.dropped();
+        if (!overflowing) {
+            overflowing = true;
+            logger.warning("Reply queue full, " + dropped + " packets dropped so far");
+        }
+    }
+
+    /**
+     * @return the number of packets dropped because the reply queue was full
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     public static void usage() {
         System.out.println("Usage : ServerEcho port");
     }
@@ -95,6 +135,7 @@ public class ServerEcho {
             return;
         }
         ServerEcho server= new ServerEcho(Integer.valueOf(args[0]));
+        server.getMetrics().export(ServerMetrics.DEFAULT_DUMP_PERIOD);
         server.serve();
     }
 
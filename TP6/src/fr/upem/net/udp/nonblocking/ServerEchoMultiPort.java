@@ -8,6 +8,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.logging.Logger;
 
 public class ServerEchoMultiPort {
@@ -16,19 +17,26 @@ public class ServerEchoMultiPort {
 
 
     private final Selector selector;
+    // shared by all the ports
+    private final ServerMetrics metrics;
 
     public ServerEchoMultiPort(int port1, int port2) throws IOException {
         if(port2 < port1 || port2 <= 0 || port1 <= 0){
             throw new IllegalArgumentException();
         }
         selector = Selector.open();
+        metrics = new ServerMetrics("ServerEchoMultiPort-" + port1 + "-" + port2, false);
+        var contexts = new ArrayList<Context>();
 
         for(int i = port1;i <= port2; i++){
             var dc = DatagramChannel.open();
             dc.bind(new InetSocketAddress(i));
             dc.configureBlocking(false);
-            dc.register(selector, SelectionKey.OP_READ, new Context());
+            var context = new Context(metrics);
+            contexts.add(context);
+            dc.register(selector, SelectionKey.OP_READ, context);
         }
+        metrics.gauge("replyQueueSize", () -> contexts.stream().mapToLong(context -> context.queue.size()).sum());
 
    }
 
@@ -64,36 +72,75 @@ public class ServerEchoMultiPort {
 
 	public static class Context{
         private final int BUFFER_SIZE = 1024;
+        private final int QUEUE_CAPACITY = 64;
+        // maximum number of datagrams received for one selection, so that replies get sent
+        private final int MAX_READS = 64;
         private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-        private InetSocketAddress addr;
+        private final ReplyQueue queue = new ReplyQueue(QUEUE_CAPACITY, BUFFER_SIZE);
+        private final ServerMetrics metrics;
+        private long dropped;
+        private boolean overflowing;
+
+        private Context(ServerMetrics metrics) {
+            this.metrics = metrics;
+        }
 
         private void doRead(SelectionKey key) throws IOException {
-            buff.clear();
             DatagramChannel dc = (DatagramChannel) key.channel();
-            addr = (InetSocketAddress) dc.receive(buff);
-            if(addr != null){
-                System.out.println("Packet received !");
-                key.interestOps(SelectionKey.OP_WRITE);
-            }
-            else{
-                System.out.println("No packets");
+            for (var i = 0; i < MAX_READS; i++) {
+                if (queue.isFull()) {
+                    buff.clear();
+                    if (dc.receive(buff) == null) {
+                        break;
+                    }
+                    metrics.requestReceived(buff.position());
+                    drop(dc);
+                    continue;
+                }
+                var reply = queue.reserve();
+                var addr = (InetSocketAddress) dc.receive(reply);
+                if (addr == null) {
+                    break;
+                }
+                var start = metrics.requestReceived(reply.position());
+                queue.commit(addr);
+                metrics.requestTreated(start);
+                overflowing = false;
             }
-            buff.flip();
+            updateInterestOps(key);
 	 }
 
         private void doWrite(SelectionKey key) throws IOException {
             DatagramChannel dc = (DatagramChannel) key.channel();
-            dc.send(buff, addr);
-            if(!buff.hasRemaining()){
-                key.interestOps(SelectionKey.OP_READ);
-                System.out.println("Packet sent !");
+            while (!queue.isEmpty()) {
+                var reply = queue.peekPayload();
+                var size = reply.remaining();
+                dc.send(reply, queue.peekDestination());
+                if (reply.hasRemaining()) {
+                    break;
+                }
+                metrics.replySent(size);
+                queue.remove();
             }
-            else{
-                buff.compact();
-                System.out.println("No packet sent");
+            updateInterestOps(key);
+	}
+
+        private void updateInterestOps(SelectionKey key) {
+            key.interestOps(queue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void drop(DatagramChannel dc) throws IOException {
+            dropped++;
+            metrics.dropped();
+            if (!overflowing) {
+                overflowing = true;
+                logger.warning("Reply queue full on " + dc.getLocalAddress() + ", " + dropped + " packets dropped so far");
             }
+        }
+    }
 
-	}
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
     public static void usage() {
@@ -106,6 +153,7 @@ public class ServerEchoMultiPort {
             return;
         }
         ServerEchoMultiPort server= new ServerEchoMultiPort(Integer.valueOf(args[0]), Integer.valueOf(args[1]));
+        server.getMetrics().export(ServerMetrics.DEFAULT_DUMP_PERIOD);
         server.serve();
     }
 
@@ -3,7 +3,6 @@ package fr.upem.net.udp.nonblocking;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
@@ -17,13 +16,20 @@ public class ServerEchoPlus {
     private final DatagramChannel dc;
     private final Selector selector;
     private final int BUFFER_SIZE = 1024;
+    private final int QUEUE_CAPACITY = 256;
+    // maximum number of datagrams received for one selection, so that replies get sent
+    private final int MAX_READS = 256;
     private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private final ByteBuffer sendBb = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private SocketAddress exp;
+    private final ReplyQueue queue = new ReplyQueue(QUEUE_CAPACITY, BUFFER_SIZE);
+    private final ServerMetrics metrics;
+    private long dropped;
+    private boolean overflowing;
     private int port;
 
     public ServerEchoPlus(int port) throws IOException {
         this.port=port;
+        metrics = new ServerMetrics("ServerEchoPlus-" + port, false);
+        metrics.gauge("replyQueueSize", queue::size);
         selector = Selector.open();
         dc = DatagramChannel.open();
         dc.bind(new InetSocketAddress(port));
@@ -56,39 +62,66 @@ public class ServerEchoPlus {
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-
+        if (key.isValid()) {
+            key.interestOps(queue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
     }
 
     private void doRead(SelectionKey key) throws IOException {
-        buff.clear();
-   		exp = dc.receive(buff);
-   		if(exp != null){
+        for (var i = 0; i < MAX_READS; i++) {
+            buff.clear();
+            var exp = (InetSocketAddress) dc.receive(buff);
+            if (exp == null) {
+                return;
+            }
+            var start = metrics.requestReceived(buff.position());
+            if (queue.isFull()) {
+                drop();
+                continue;
+            }
             buff.flip();
-            sendBb.clear();
+            var sendBb = queue.reserve();
             while(buff.hasRemaining()){
                 sendBb.put((byte) (buff.get() + 1%255));
             }
-            key.interestOps(SelectionKey.OP_WRITE);
+            queue.commit(exp);
+            metrics.requestTreated(start);
+            overflowing = false;
         }
-   		else{
-            System.out.println("No packets");
-        }
-
 	 }
 
     private void doWrite(SelectionKey key) throws IOException {
-        sendBb.flip();
-   		dc.send(sendBb, exp);
-   		if(!sendBb.hasRemaining()){
-            System.out.println("Packet sent !");
-            key.interestOps(SelectionKey.OP_READ);
+        while (!queue.isEmpty()) {
+            var sendBb = queue.peekPayload();
+            var size = sendBb.remaining();
+            dc.send(sendBb, queue.peekDestination());
+            if (sendBb.hasRemaining()) {
+                return;
+            }
+            metrics.replySent(size);
+            queue.remove();
         }
-   		else{
-   		    sendBb.compact();
-            System.out.println("No packet sent");
+	}
+
+    private void drop() {
+        dropped++;
+        metrics.dropped();
+        if (!overflowing) {
+            overflowing = true;
+            logger.warning("Reply queue full, " + dropped + " packets dropped so far");
         }
+    }
 
-	}
+    /**
+     * @return the number of packets dropped because the reply queue was full
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
 
     public static void usage() {
         System.out.println("Usage : ServerEcho port");
@@ -100,6 +133,7 @@ public class ServerEchoPlus {
             return;
         }
         ServerEchoPlus server= new ServerEchoPlus(Integer.valueOf(args[0]));
+        server.getMetrics().export(ServerMetrics.DEFAULT_DUMP_PERIOD);
         server.serve();
     }
 
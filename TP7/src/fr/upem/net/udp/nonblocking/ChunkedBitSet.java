@@ -0,0 +1,122 @@
+package fr.upem.net.udp.nonblocking;
+
+/**
+ * Fixed-size set of bits indexed by a long, keeping track of the number of bits set so that
+ * {@link #cardinality()} and {@link #isFull()} are constant-time.
+ * <p>
+ * The bits are stored in chunks of {@value #CHUNK_BITS} bits allocated on first use, so a large
+ * set that is filled progressively only uses memory for the parts that have been touched. When
+ * a chunk is completely set, its storage is released and replaced by a shared full chunk.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class ChunkedBitSet {
+
+    private static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_BITS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_BITS - 1;
+    private static final long[] FULL = new long[0];
+
+    private final long size;
+    private final long[][] chunks;
+    private final int[] chunkCounts;
+    private long cardinality;
+
+    /**
+     * @param size the number of bits of the set, all cleared
+     */
+    public ChunkedBitSet(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        var nbChunks = (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+        if (nbChunks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("size too large " + size);
+        }
+        this.size = size;
+        this.chunks = new long[(int) nbChunks][];
+        this.chunkCounts = new int[(int) nbChunks];
+    }
+
+    /**
+     * @return the number of bits of the set
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bits set
+     */
+    public long cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return true if all the bits are set
+     */
+    public boolean isFull() {
+        return cardinality == size;
+    }
+
+    public boolean get(long index) {
+        checkIndex(index);
+        var chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+        if (chunk == null) {
+            return false;
+        }
+        if (chunk == FULL) {
+            return true;
+        }
+        var bit = (int) index & CHUNK_MASK;
+        return (chunk[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Sets the bit at the given index.
+     *
+     * @return true if the bit was not already set
+     */
+    public boolean set(long index) {
+        checkIndex(index);
+        var chunkIndex = (int) (index >>> CHUNK_SHIFT);
+        var chunk = chunks[chunkIndex];
+        if (chunk == FULL) {
+            return false;
+        }
+        if (chunk == null) {
+            chunk = new long[chunkLength(chunkIndex)];
+            chunks[chunkIndex] = chunk;
+        }
+        var bit = (int) index & CHUNK_MASK;
+        var word = bit >>> 6;
+        var mask = 1L << bit;
+        if ((chunk[word] & mask) != 0) {
+            return false;
+        }
+        chunk[word] |= mask;
+        cardinality++;
+        if (++chunkCounts[chunkIndex] == chunkBits(chunkIndex)) {
+            chunks[chunkIndex] = FULL;
+        }
+        return true;
+    }
+
+    private int chunkBits(int chunkIndex) {
+        if (chunkIndex == chunks.length - 1) {
+            var lastBits = (int) (size & CHUNK_MASK);
+            return lastBits == 0 ? CHUNK_BITS : lastBits;
+        }
+        return CHUNK_BITS;
+    }
+
+    private int chunkLength(int chunkIndex) {
+        return (chunkBits(chunkIndex) + 63) >>> 6;
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds for size " + size);
+        }
+    }
+}
@@ -4,6 +4,8 @@ package fr.upem.net.udp.nonblocking;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.PortUnreachableException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
@@ -12,62 +14,137 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.logging.Logger;
 
+/**
+ * Sends all the lines without waiting for their replies, with a congestion window and pacing.
+ * <p>
+ * At most cwnd lines are in flight, and the lines are spaced by srtt / cwnd so that a window
+ * is spread over a round-trip instead of being sent back to back. The window grows by one line
+ * per reply up to ssthresh (slow start), then by one line per round-trip; when a line is
+ * declared lost because its timeout expired, the window is halved, at most once per window of
+ * lines sent: the losses of the lines sent before the last decrease are part of the same loss
+ * event. The lost lines are sent again before the new ones.
+ * <p>
+ * All the lines in flight use the current retransmission timeout, counted from their last
+ * emission, so the line sent first is always the first one to expire, even when the timeout
+ * has decreased since the later lines were sent.
+ */
 public class ClientIdUpperCaseUDPBurst {
 
     private static Logger logger = Logger.getLogger(ClientIdUpperCaseUDPBurst.class.getName());
     private static final Charset UTF8 = Charset.forName("UTF8");
     private static final int BUFFER_SIZE = 1024;
+    // the largest payload of a UDP datagram, less the id
+    private static final int MAX_LINE_SIZE = 65_507 - Long.BYTES;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(UTF8);
+    private static final long NANOS_PER_MILLI = 1_000_000;
+    private static final double INITIAL_WINDOW = 4;
+    private static final double MIN_WINDOW = 2;
+    private static final double MAX_WINDOW = 1 << 16;
+    // multiplicative decrease of the window on a loss
+    private static final double BETA = 0.5;
 
     private enum State {SENDING, RECEIVING, FINISHED}
 
     ;
 
-    private final List<String> lines;
-    private final int timeout;
+    // the packets of the lines, encoded once for all their emissions
+    private final PacketArena packets;
+    // with -mmap, the lines are read from the mapping and the replies kept in a temporary file
+    private final MappedLines mappedLines;
+    private final SpilledReplies replies;
     private final InetSocketAddress serverAddress;
     private final DatagramChannel dc;
     private final Selector selector;
     private final int nbLines;
-    private final String[] upperCaseLines; //
+    private final String[] upperCaseLines;
     private final SelectionKey uniqueKey;
-    private final ByteBuffer sendingBuff = ByteBuffer.allocate(BUFFER_SIZE);
-    private final ByteBuffer receiveBuff = ByteBuffer.allocate(BUFFER_SIZE);
-    private long lastSend;
-    private int currentId;
-    private final BitSet bs;
-    // TODO add new fields
+    private final ByteBuffer receiveBuff;
+    // the id and the line of -mmap, sent in one datagram by a gathering write
+    private final ByteBuffer[] packet = {ByteBuffer.allocateDirect(Long.BYTES), null};
+    private final ChunkedBitSet bs;
+    private final RttEstimator rtt;
+    // time in nanoseconds of the last emission of each line
+    private final long[] sendTimes;
+    // true for the lines sent and neither acknowledged nor declared lost since
+    private final boolean[] inFlightLines;
+    private final int[] retransmissions;
+    // lines sent, in the order of their emission; the acknowledged ones are removed lazily
+    private final IdQueue flight;
+    // lines declared lost, waiting to be sent again
+    private final IdQueue lost;
+    private int nextNewId;
+    private int inFlight;
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = MAX_WINDOW;
+    // a loss of a line sent before this position in flight belongs to the last decrease
+    private long recoveryPoint;
+    // true if a new reply was received since the last loss
+    private boolean progress;
+    private long nextSendTime;
+    private long totalRetransmissions;
+    private long windowDecreases;
 
     private State state;
 
     private static void usage() {
-        System.out.println("Usage : ClientIdUpperCaseUDPOneByOne in-filename out-filename timeout host port ");
+        System.out.println("Usage : ClientIdUpperCaseUDPBurst in-filename out-filename timeout host port [-mmap]");
     }
 
     public ClientIdUpperCaseUDPBurst(List<String> lines, int timeout, InetSocketAddress serverAddress) throws IOException {
-        this.lines = lines;
-        this.timeout = timeout;
-        this.nbLines = lines.size();
+        this(lines, null, lines.size(), timeout, serverAddress, null);
+    }
+
+    /**
+     * Creates a client that sends the lines directly from the mapping of the input file, so
+     * that sending a line again does not copy it, and stores the replies in replies instead of
+     * returning them. No String is created, which lets the client send files of tens of
+     * millions of lines.
+     */
+    public ClientIdUpperCaseUDPBurst(MappedLines lines, int timeout, InetSocketAddress serverAddress,
+                                     SpilledReplies replies) throws IOException {
+        this(null, lines, lines.size(), timeout, serverAddress, Objects.requireNonNull(replies));
+    }
+
+    private ClientIdUpperCaseUDPBurst(List<String> lines, MappedLines mappedLines, int nbLines, int timeout,
+                                      InetSocketAddress serverAddress, SpilledReplies replies) throws IOException {
+        this.packets = lines == null ? null : PacketArena.encode(lines);
+        this.mappedLines = mappedLines;
+        this.replies = replies;
+        this.nbLines = nbLines;
         this.serverAddress = serverAddress;
         this.dc = DatagramChannel.open();
-        this.bs = new BitSet(nbLines);
+        this.bs = new ChunkedBitSet(nbLines);
         dc.configureBlocking(false);
         dc.bind(null);
+        if (mappedLines != null) {
+            // connected for the gathering writes
+            dc.connect(serverAddress);
+        }
+        // the lines of -mmap are only limited by the size of a datagram
+        this.receiveBuff = ByteBuffer.allocate(mappedLines == null ? BUFFER_SIZE : Long.BYTES + MAX_LINE_SIZE);
         this.selector = Selector.open();
         this.uniqueKey = dc.register(selector, SelectionKey.OP_WRITE);
-        this.state = State.SENDING;
-        this.upperCaseLines = new String[nbLines];
-
-
+        this.state = nbLines == 0 ? State.FINISHED : State.SENDING;
+        this.upperCaseLines = mappedLines == null ? new String[nbLines] : null;
+        this.rtt = new RttEstimator(timeout);
+        this.sendTimes = new long[nbLines];
+        this.inFlightLines = new boolean[nbLines];
+        this.retransmissions = new int[nbLines];
+        this.flight = new IdQueue(nbLines);
+        this.lost = new IdQueue(nbLines);
     }
 
 
     public static void main(String[] args) throws IOException, InterruptedException {
+        var mapped = args.length > 0 && args[args.length - 1].equals("-mmap");
+        if (mapped) {
+            args = Arrays.copyOf(args, args.length - 1);
+        }
         if (args.length != 5) {
             usage();
             return;
@@ -80,6 +157,15 @@ public class ClientIdUpperCaseUDPBurst {
         int port = Integer.valueOf(args[4]);
         InetSocketAddress serverAddress = new InetSocketAddress(host, port);
 
+        if (mapped) {
+            var lines = MappedLines.map(Paths.get(inFilename), MAX_LINE_SIZE);
+            var outPath = Paths.get(outFilename);
+            try (var replies = new SpilledReplies(lines.size(), outPath.toAbsolutePath().getParent())) {
+                new ClientIdUpperCaseUDPBurst(lines, timeout, serverAddress, replies).launch();
+                replies.writeTo(outPath, LINE_SEPARATOR);
+            }
+            return;
+        }
         //Read all lines of inFilename opened in UTF-8
         List<String> lines = Files.readAllLines(Paths.get(inFilename), UTF8);
         //Create client with the parameters and launch it
@@ -92,7 +178,10 @@ public class ClientIdUpperCaseUDPBurst {
 
     }
 
-    private String[] launch() throws IOException, InterruptedException {
+    /**
+     * @return the replies, or null if they are stored in a SpilledReplies
+     */
+    public String[] launch() throws IOException, InterruptedException {
         while (!isFinished()) {
             try {
                 selector.select(this::treatKey, updateInterestOps());
@@ -101,9 +190,32 @@ public class ClientIdUpperCaseUDPBurst {
             }
         }
         dc.close();
+        logger.info(nbLines + " lines, " + totalRetransmissions + " retransmissions, final window "
+                + (int) cwnd + ", srtt " + rtt.getSmoothedRtt() + " ms");
         return upperCaseLines;
     }
 
+    /**
+     * @return the number of times the line id was sent again
+     */
+    public int getRetransmissions(int id) {
+        return retransmissions[id];
+    }
+
+    /**
+     * @return the number of retransmissions of all the lines
+     */
+    public long getTotalRetransmissions() {
+        return totalRetransmissions;
+    }
+
+    /**
+     * @return the number of times the window was halved, once per loss event
+     */
+    public long getWindowDecreases() {
+        return windowDecreases;
+    }
+
     private void treatKey(SelectionKey key) {
         try {
             if (key.isValid() && key.isWritable()) {
@@ -124,27 +236,92 @@ public class ClientIdUpperCaseUDPBurst {
      */
 
     private int updateInterestOps() {
-        // TODO
-
-        var currentTime = System.currentTimeMillis();
-        if (currentTime - lastSend >= timeout){
-            uniqueKey.interestOps(SelectionKey.OP_WRITE);
+        if (isFinished()) {
             return 0;
         }
-        if (this.state == State.SENDING) {
-            uniqueKey.interestOps(SelectionKey.OP_WRITE);
+        var currentTime = System.nanoTime();
+        detectLosses(currentTime);
+        // the first line in flight that is not acknowledged was sent first, so it expires first
+        var timeout = flight.isEmpty() ? Long.MAX_VALUE
+                : (deadline(flight.peek()) - currentTime + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+        if (canSend()) {
+            var wait = nextSendTime - System.nanoTime();
+            if (wait <= 0) {
+                state = State.SENDING;
+                uniqueKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return 0;
+            }
+            timeout = Math.min(timeout, (wait + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+        }
+        state = State.RECEIVING;
+        uniqueKey.interestOps(SelectionKey.OP_READ);
+        if (timeout == Long.MAX_VALUE) {
             return 0;
         }
-        if (this.state == State.RECEIVING) {
-            uniqueKey.interestOps(SelectionKey.OP_READ);
+        return (int) Math.max(1, Math.min(timeout, Integer.MAX_VALUE));
+    }
+
+    private boolean isFinished() {
+        return state == State.FINISHED;
+    }
 
+    private boolean canSend() {
+        return inFlight < cwnd && nextLine() >= 0;
+    }
+
+    /**
+     * @return the next line to send, the lost lines first, or -1 if there is none
+     */
+    private int nextLine() {
+        while (!lost.isEmpty() && bs.get(lost.peek())) {
+            // acknowledged after it was declared lost
+            lost.poll();
+        }
+        if (!lost.isEmpty()) {
+            return lost.peek();
         }
+        return nextNewId < nbLines ? nextNewId : -1;
+    }
 
-        return (int) Math.abs(currentTime - lastSend - timeout);
+    /**
+     * @return the time in nanoseconds at which the line in flight id is declared lost
+     */
+    private long deadline(int id) {
+        return sendTimes[id] + rtt.getTimeout() * NANOS_PER_MILLI;
     }
 
-    private boolean isFinished() {
-        return state == State.FINISHED;
+    /**
+     * Declares lost the lines in flight whose deadline has passed.
+     *
+     * @param currentTime the time in nanoseconds
+     */
+    private void detectLosses(long currentTime) {
+        while (!flight.isEmpty()) {
+            var id = flight.peek();
+            if (bs.get(id)) {
+                flight.poll();
+                continue;
+            }
+            if (deadline(id) - currentTime > 0) {
+                return;
+            }
+            var position = flight.headPosition();
+            flight.poll();
+            inFlightLines[id] = false;
+            inFlight--;
+            lost.add(id);
+            if (position >= recoveryPoint) {
+                // first loss of this window
+                ssthresh = Math.max(MIN_WINDOW, cwnd * BETA);
+                cwnd = ssthresh;
+                recoveryPoint = flight.tailPosition();
+                windowDecreases++;
+                if (!progress) {
+                    rtt.backoff();
+                }
+                progress = false;
+            }
+        }
     }
 
     /**
@@ -155,7 +332,14 @@ public class ClientIdUpperCaseUDPBurst {
 
     private void doRead() throws IOException {
         receiveBuff.clear();
-        var exp = dc.receive(receiveBuff);
+        SocketAddress exp;
+        try {
+            exp = dc.receive(receiveBuff);
+        } catch (PortUnreachableException e) {
+            // with -mmap, the channel is connected and gets the errors of the lines sent before
+            // the server started
+            return;
+        }
         if (exp == null) {
             logger.info("Read : null");
             return;
@@ -165,59 +349,146 @@ public class ClientIdUpperCaseUDPBurst {
             logger.info("ID in buff : error");
             return;
         }
-        var id = receiveBuff.getLong();
-        if(bs.get((int) id)){
+        var longId = receiveBuff.getLong();
+        if (longId < 0 || longId >= nextNewId) {
+            logger.info("Wrong packet, ID: " + longId);
+            return;
+        }
+        var id = (int) longId;
+        if (bs.get(id)) {
             return;
         }
 
-        logger.info("Receive packet ID : "+ id);
-        bs.set((int) id);
-        var decodeMsg = UTF8.decode(receiveBuff).toString();
-        upperCaseLines[(int) id] = decodeMsg;
-        if (bs.cardinality() == lines.size()) {
+        logger.fine("Receive packet ID : " + id);
+        if (retransmissions[id] == 0) {
+            rtt.addSample(System.nanoTime() - sendTimes[id]);
+        }
+        if (inFlightLines[id]) {
+            inFlightLines[id] = false;
+            inFlight--;
+        }
+        bs.set(id);
+        progress = true;
+        // slow start up to ssthresh, then one more line per window
+        cwnd = Math.min(MAX_WINDOW, cwnd < ssthresh ? cwnd + 1 : cwnd + 1 / cwnd);
+        if (replies != null) {
+            replies.put(id, receiveBuff);
+        } else {
+            var decodeMsg = UTF8.decode(receiveBuff).toString();
+            upperCaseLines[id] = decodeMsg;
+        }
+        if (bs.isFull()) {
             state = State.FINISHED;
         }
-
-
     }
 
     /**
-     * Tries to send the packets
+     * Sends the lines allowed by the window and the pacing.
      *
      * @throws IOException
      */
 
     private void doWrite() throws IOException {
-        if(currentId > lines.size() -1){
-            currentId = 0;
-            state = State.RECEIVING;
-            lastSend = System.currentTimeMillis();
-            return;
+        var now = System.nanoTime();
+        // no more than one millisecond of sending is saved up while waiting
+        nextSendTime = Math.max(nextSendTime, now - NANOS_PER_MILLI);
+        while (inFlight < cwnd && nextSendTime <= now) {
+            var id = nextLine();
+            if (id < 0) {
+                return;
+            }
+            if (!send(id)) {
+                return;
+            }
+            if (id == nextNewId) {
+                nextNewId++;
+            } else {
+                lost.poll();
+                retransmissions[id]++;
+                totalRetransmissions++;
+            }
+            nextSendTime += pacingInterval();
         }
+    }
 
-        if(bs.get(currentId)){
-            currentId++;
-            return;
+    /**
+     * @return the time in nanoseconds between two emissions, to send a window per round-trip
+     */
+    private long pacingInterval() {
+        var srtt = rtt.getSmoothedRtt();
+        if (srtt < 0) {
+            return 0;
         }
+        return (long) (srtt * NANOS_PER_MILLI / cwnd);
+    }
 
-        sendingBuff.clear();
-        sendingBuff.putLong(currentId);
-        var text = UTF8.encode(lines.get(currentId));
-        currentId++;
-        sendingBuff.put(text);
-        sendingBuff.flip();
-        dc.send(sendingBuff, serverAddress);
-        if (!sendingBuff.hasRemaining()) {
-            logger.info("Sending packet : done ID : " + currentId);
-
+    /**
+     * @return false if the packet could not be sent because the socket buffer is full
+     */
+    private boolean send(int id) throws IOException {
+        if (!sendPacket(id)) {
+            logger.fine("Sending packet : failed");
+            return false;
         }
+        logger.fine("Sending packet : done ID : " + id);
+        sendTimes[id] = System.nanoTime();
+        inFlightLines[id] = true;
+        flight.add(id);
+        inFlight++;
+        return true;
+    }
 
+    /**
+     * @return false if the packet could not be sent because the socket buffer is full
+     */
+    private boolean sendPacket(int id) throws IOException {
+        if (mappedLines == null) {
+            var encoded = packets.packet(id);
+            dc.send(encoded, serverAddress);
+            return !encoded.hasRemaining();
+        }
+        // the line is not copied
+        packet[0].clear();
+        packet[0].putLong(id).flip();
+        packet[1] = mappedLines.line(id);
+        return dc.write(packet) != 0;
     }
-}
 
+    /**
+     * FIFO of line ids, where each id is at most once. The positions of the ids in the queue
+     * keep increasing, so they tell which of two ids was added first.
+     */
+    private static final class IdQueue {
+        private final int[] ids;
+        private long head;
+        private long tail;
 
+        IdQueue(int capacity) {
+            ids = new int[Math.max(1, capacity)];
+        }
 
+        boolean isEmpty() {
+            return head == tail;
+        }
 
+        int peek() {
+            return ids[(int) (head % ids.length)];
+        }
 
+        int poll() {
+            return ids[(int) (head++ % ids.length)];
+        }
 
+        void add(int id) {
+            ids[(int) (tail++ % ids.length)] = id;
+        }
 
+        long headPosition() {
+            return head;
+        }
+
+        long tailPosition() {
+            return tail;
+        }
+    }
+}
@@ -12,10 +12,18 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
+/**
+ * Sends the lines one by one, or with a sliding window of several lines in flight.
+ * <p>
+ * The ids in [base, nextId) have been sent and not all of them are acknowledged yet; with a
+ * window of W, at most W ids are in flight (nextId - base &lt;= W). Each id in flight has its
+ * own retransmission deadline, and base moves forward as soon as the reply of the line base is
+ * received. With W = 1, this is the original one by one protocol.
+ */
 public class ClientIdUpperCaseUDPOneByOne {
 
     private static Logger logger = Logger.getLogger(ClientIdUpperCaseUDPOneByOne.class.getName());
@@ -27,41 +35,59 @@ public class ClientIdUpperCaseUDPOneByOne {
     ;
 
     private final List<String> lines;
-    private final List<String> upperCaseLines = new ArrayList<>();
-    private final int timeout;
+    private final int nbLines;
+    private final String[] upperCaseLines;
+    private final int window;
     private final InetSocketAddress serverAddress;
     private final DatagramChannel dc;
     private final Selector selector;
     private final SelectionKey uniqueKey;
     private final ByteBuffer sendingBuff = ByteBuffer.allocate(BUFFER_SIZE);
     private final ByteBuffer receiveBuff = ByteBuffer.allocate(BUFFER_SIZE);
-    private long lastSend;
-    private int currentId;
-    // TODO add new fields
+    private final ChunkedBitSet received;
+    // retransmission deadline of the id in flight i is stored at i % window
+    private final long[] deadlines;
+    // time of the first emission of the id in flight i, or NOT_TIMED once it has been sent again
+    private final long[] sendTimes;
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    private final RttEstimator rtt;
+    private int base;
+    private int nextId;
 
     private State state;
 
     private static void usage() {
-        System.out.println("Usage : ClientIdUpperCaseUDPOneByOne in-filename out-filename timeout host port ");
+        System.out.println("Usage : ClientIdUpperCaseUDPOneByOne in-filename out-filename timeout host port [window]");
     }
 
     public ClientIdUpperCaseUDPOneByOne(List<String> lines, int timeout, InetSocketAddress serverAddress) throws IOException {
+        this(lines, timeout, serverAddress, 1);
+    }
+
+    public ClientIdUpperCaseUDPOneByOne(List<String> lines, int timeout, InetSocketAddress serverAddress, int window) throws IOException {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
         this.lines = lines;
-        this.timeout = timeout;
+        this.nbLines = lines.size();
+        this.upperCaseLines = new String[nbLines];
+        this.window = window;
         this.serverAddress = serverAddress;
+        this.received = new ChunkedBitSet(nbLines);
+        this.deadlines = new long[window];
+        this.sendTimes = new long[window];
+        this.rtt = new RttEstimator(timeout);
         this.dc = DatagramChannel.open();
         dc.configureBlocking(false);
         dc.bind(null);
         this.selector = Selector.open();
         this.uniqueKey = dc.register(selector, SelectionKey.OP_WRITE);
-        this.state = State.SENDING;
-        sendingBuff.putLong(currentId);
-        sendingBuff.put(UTF8.encode(lines.get((int) currentId)));
+        this.state = nbLines == 0 ? State.FINISHED : State.SENDING;
     }
 
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length != 5) {
+        if (args.length != 5 && args.length != 6) {
             usage();
             return;
         }
@@ -71,12 +97,13 @@ public class ClientIdUpperCaseUDPOneByOne {
         int timeout = Integer.valueOf(args[2]);
         String host = args[3];
         int port = Integer.valueOf(args[4]);
+        int window = args.length == 6 ? Integer.valueOf(args[5]) : 1;
         InetSocketAddress serverAddress = new InetSocketAddress(host, port);
 
         //Read all lines of inFilename opened in UTF-8
         List<String> lines = Files.readAllLines(Paths.get(inFilename), UTF8);
         //Create client with the parameters and launch it
-        ClientIdUpperCaseUDPOneByOne client = new ClientIdUpperCaseUDPOneByOne(lines, timeout, serverAddress);
+        ClientIdUpperCaseUDPOneByOne client = new ClientIdUpperCaseUDPOneByOne(lines, timeout, serverAddress, window);
         List<String> upperCaseLines = client.launch();
         Files.write(Paths.get(outFilename), upperCaseLines, UTF8,
                 StandardOpenOption.CREATE,
@@ -94,7 +121,7 @@ public class ClientIdUpperCaseUDPOneByOne {
             }
         }
         dc.close();
-        return upperCaseLines;
+        return Arrays.asList(upperCaseLines);
     }
 
     private void treatKey(SelectionKey key) {
@@ -117,24 +144,42 @@ public class ClientIdUpperCaseUDPOneByOne {
      */
 
     private int updateInterestOps() {
-        // TODO
         var currentTime = System.currentTimeMillis();
-        if (this.state == State.SENDING || currentTime - lastSend >= timeout) {
-            uniqueKey.interestOps(SelectionKey.OP_WRITE);
+        var nextDeadline = nextDeadline();
+        if (canSendNewLine() || nextDeadline <= currentTime) {
+            state = State.SENDING;
+            uniqueKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
             return 0;
         }
-        if (this.state == State.RECEIVING) {
-            uniqueKey.interestOps(SelectionKey.OP_READ);
-
+        state = State.RECEIVING;
+        uniqueKey.interestOps(SelectionKey.OP_READ);
+        if (nextDeadline == Long.MAX_VALUE) {
+            return 0;
         }
-
-        return (int) Math.abs(currentTime - lastSend - timeout);
+        return (int) Math.min(nextDeadline - currentTime, Integer.MAX_VALUE);
     }
 
     private boolean isFinished() {
         return state == State.FINISHED;
     }
 
+    private boolean canSendNewLine() {
+        return nextId < nbLines && nextId - base < window;
+    }
+
+    /**
+     * @return the earliest retransmission deadline of the lines in flight
+     */
+    private long nextDeadline() {
+        var nextDeadline = Long.MAX_VALUE;
+        for (var id = base; id < nextId; id++) {
+            if (!received.get(id)) {
+                nextDeadline = Math.min(nextDeadline, deadlines[id % window]);
+            }
+        }
+        return nextDeadline;
+    }
+
     /**
      * Performs the receptions of packets
      *
@@ -154,52 +199,72 @@ public class ClientIdUpperCaseUDPOneByOne {
             return;
         }
         var id = receiveBuff.getLong();
-        if (id != currentId) {
-
-            logger.info("Wrong packet, ID: " + id + " currentID : "+ currentId);
+        if (id < base || id >= nextId || received.get(id)) {
+            logger.fine("Wrong packet, ID: " + id + " window : [" + base + ", " + nextId + "[");
             return;
         }
-        currentId++;
-        logger.info("Receive packet ID : "+ id);
-        var decodeMsg = UTF8.decode(receiveBuff).toString();
-        upperCaseLines.add(decodeMsg);
-        if (currentId == lines.size()) {
+        logger.fine("Receive packet ID : " + id);
+        received.set(id);
+        var sendTime = sendTimes[(int) id % window];
+        if (sendTime != NOT_TIMED) {
+            rtt.addSample(System.nanoTime() - sendTime);
+        }
+        upperCaseLines[(int) id] = UTF8.decode(receiveBuff).toString();
+        while (base < nbLines && received.get(base)) {
+            base++;
+        }
+        if (base == nbLines) {
             state = State.FINISHED;
-            return;
         }
-        state = State.SENDING;
-        sendingBuff.clear();
-        sendingBuff.putLong(currentId);
-        var text = UTF8.encode(lines.get(currentId));
-        sendingBuff.put(text);
     }
 
     /**
-     * Tries to send the packets
+     * Tries to send the packets: first the lines in flight whose deadline has passed, then
+     * new lines while the window is not full.
      *
      * @throws IOException
      */
 
     private void doWrite() throws IOException {
-        // TODO
+        var currentTime = System.currentTimeMillis();
+        var expired = false;
+        for (var id = base; id < nextId; id++) {
+            if (!received.get(id) && deadlines[id % window] <= currentTime) {
+                if (!expired) {
+                    // the lines that expire together are only counted once
+                    rtt.backoff();
+                    expired = true;
+                }
+                if (!send(id, currentTime)) {
+                    return;
+                }
+                sendTimes[id % window] = NOT_TIMED;
+            }
+        }
+        while (canSendNewLine()) {
+            sendTimes[nextId % window] = System.nanoTime();
+            if (!send(nextId, currentTime)) {
+                return;
+            }
+            nextId++;
+        }
+    }
+
+    /**
+     * @return false if the packet could not be sent because the socket buffer is full
+     */
+    private boolean send(int id, long currentTime) throws IOException {
+        sendingBuff.clear();
+        sendingBuff.putLong(id);
+        sendingBuff.put(UTF8.encode(lines.get(id)));
         sendingBuff.flip();
         dc.send(sendingBuff, serverAddress);
-        if (!sendingBuff.hasRemaining()) {
-            logger.info("Sending packet : done ID : " + currentId);
-            state = State.RECEIVING;
-            lastSend = System.currentTimeMillis();
-        } else {
-            sendingBuff.compact();
+        if (sendingBuff.hasRemaining()) {
             logger.info("Sending packet : failed");
-
+            return false;
         }
-
+        logger.fine("Sending packet : done ID : " + id);
+        deadlines[id % window] = currentTime + rtt.getTimeout();
+        return true;
     }
 }
-
-
-
-
-
-
-
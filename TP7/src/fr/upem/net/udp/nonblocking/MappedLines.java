@@ -0,0 +1,150 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The lines of a file mapped in memory, indexed by the offset of their first byte.
+ * <p>
+ * The lines end with "\n", "\r" or "\r\n" as for {@link java.nio.file.Files#readAllLines(Path)},
+ * but they are neither decoded nor checked: {@link #line(int)} returns a slice of the mapping
+ * holding the bytes of the line as they are in the file, without its terminator. The memory
+ * used by the index is one long per line, and the content of the file is only paged in by the
+ * system when a line is sent, so a file of tens of millions of lines does not create any
+ * String.
+ * <p>
+ * A MappedByteBuffer is at most 2 GB, so the file is mapped by segments starting every
+ * {@value #SEGMENT_STRIDE} bytes. Each segment also maps the maxLineSize bytes following it, so
+ * that the lines starting in a segment lie completely inside it.
+ * <p>
+ * The index is immutable once built and each call to {@link #line(int)} returns a new view, so
+ * this class is thread-safe.
+ */
+public class MappedLines {
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_STRIDE = 1L << SEGMENT_SHIFT;
+
+    private final MappedByteBuffer[] segments;
+    // offset of the first byte of each line, followed by the offset of the end of the last line
+    private final long[] starts;
+    private final int nbLines;
+
+    private MappedLines(MappedByteBuffer[] segments, long[] starts, int nbLines) {
+        this.segments = segments;
+        this.starts = starts;
+        this.nbLines = nbLines;
+    }
+
+    /**
+     * Maps the file and builds the index of its lines.
+     *
+     * @param maxLineSize the maximum size of a line in bytes, without its terminator
+     * @throws IOException if a line is longer than maxLineSize or if the file has more than
+     *                     Integer.MAX_VALUE lines
+     */
+    public static MappedLines map(Path path, int maxLineSize) throws IOException {
+        if (maxLineSize <= 0) {
+            throw new IllegalArgumentException("maxLineSize must be positive");
+        }
+        try (var fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            var size = fc.size();
+            var segments = new MappedByteBuffer[(int) ((size + SEGMENT_STRIDE - 1) >>> SEGMENT_SHIFT)];
+            for (var i = 0; i < segments.length; i++) {
+                var position = i * SEGMENT_STRIDE;
+                // the terminator of the last line of the segment is mapped too
+                var length = Math.min(size - position, SEGMENT_STRIDE + maxLineSize + 2);
+                // the mapping stays valid once the channel is closed
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+            return index(segments, size, maxLineSize);
+        }
+    }
+
+    private static MappedLines index(MappedByteBuffer[] segments, long size, int maxLineSize) throws IOException {
+        var starts = new long[1024];
+        var nbLines = 0;
+        var lineStart = 0L;
+        for (var i = 0; i < segments.length; i++) {
+            var segment = segments[i];
+            var base = i * SEGMENT_STRIDE;
+            // the bytes mapped after the stride are scanned with the next segment
+            var end = (int) Math.min(segment.limit(), SEGMENT_STRIDE);
+            for (var j = 0; j < end; j++) {
+                var b = segment.get(j);
+                if (b != '\n' && b != '\r' || base + j < lineStart) {
+                    // not a terminator, or the '\n' of a "\r\n"
+                    continue;
+                }
+                starts = add(starts, nbLines++, lineStart, base + j - lineStart, maxLineSize);
+                lineStart = base + j + 1;
+                if (b == '\r' && lineStart < size && byteAt(segments, lineStart) == '\n') {
+                    lineStart++;
+                }
+            }
+        }
+        if (lineStart < size) {
+            // the last line has no terminator
+            starts = add(starts, nbLines++, lineStart, size - lineStart, maxLineSize);
+        }
+        starts[nbLines] = size;
+        return new MappedLines(segments, Arrays.copyOf(starts, nbLines + 1), nbLines);
+    }
+
+    /**
+     * Stores the start of the line index in starts, keeping room for the end of the last line.
+     *
+     * @return starts, or a larger copy of it
+     */
+    private static long[] add(long[] starts, int index, long start, long length, int maxLineSize) throws IOException {
+        if (length > maxLineSize) {
+            throw new IOException("Line " + index + " longer than " + maxLineSize + " bytes");
+        }
+        if (index == Integer.MAX_VALUE - 1) {
+            throw new IOException("Too many lines");
+        }
+        if (index + 1 == starts.length) {
+            starts = Arrays.copyOf(starts, (int) Math.min(Integer.MAX_VALUE, 2L * starts.length));
+        }
+        starts[index] = start;
+        return starts;
+    }
+
+    private static byte byteAt(MappedByteBuffer[] segments, long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].get((int) (offset & (SEGMENT_STRIDE - 1)));
+    }
+
+    /**
+     * @return the number of lines of the file
+     */
+    public int size() {
+        return nbLines;
+    }
+
+    /**
+     * Returns the bytes of a line, without copying them.
+     *
+     * @return a read-only view of the line, from position 0 to its limit, backed by the mapping
+     */
+    public ByteBuffer line(int index) {
+        Objects.checkIndex(index, nbLines);
+        var start = starts[index];
+        var segment = segments[(int) (start >>> SEGMENT_SHIFT)];
+        var from = (int) (start & (SEGMENT_STRIDE - 1));
+        var to = (int) (starts[index + 1] - start) + from;
+        // the bytes of a line are neither '\n' nor '\r', so only its terminator is removed
+        if (to > from && segment.get(to - 1) == '\n') {
+            to--;
+        }
+        if (to > from && segment.get(to - 1) == '\r') {
+            to--;
+        }
+        return segment.slice(from, to - from);
+    }
+}
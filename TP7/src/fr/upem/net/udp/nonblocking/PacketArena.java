@@ -0,0 +1,114 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The packets of the lines of a file, encoded once and packed off-heap, so that sending a line
+ * again neither encodes it nor allocates a buffer for it.
+ * <p>
+ * The packet of line i is the id i as a long followed by the line encoded in UTF-8, with the
+ * malformed chars replaced as by {@link java.nio.charset.Charset#encode(String)}. The packets
+ * are written back to back in direct buffers of {@value #CHUNK_SIZE} bytes, a packet never
+ * spanning two of them, and each packet costs a long and an int of index on the heap.
+ * <p>
+ * The arena is immutable once built and each call to {@link #packet(int)} returns a new view, so
+ * this class is thread-safe.
+ */
+public class PacketArena {
+
+    private static final int CHUNK_SIZE = 1 << 24;
+    private static final int MAX_LINE_SIZE = CHUNK_SIZE - Long.BYTES;
+
+    private final ByteBuffer[] chunks;
+    // index of the chunk of each packet in the high int, offset in the chunk in the low int
+    private final long[] locations;
+    private final int[] sizes;
+
+    private PacketArena(ByteBuffer[] chunks, long[] locations, int[] sizes) {
+        this.chunks = chunks;
+        this.locations = locations;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Encodes the packets of the lines.
+     *
+     * @throws IllegalArgumentException if a line is longer than {@value #MAX_LINE_SIZE} bytes
+     *                                  once encoded
+     */
+    public static PacketArena encode(List<String> lines) {
+        var encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        var nbLines = lines.size();
+        var locations = new long[nbLines];
+        var sizes = new int[nbLines];
+        var chunks = new ByteBuffer[8];
+        var nbChunks = 0;
+        var chunk = ByteBuffer.allocateDirect(0);
+        for (var id = 0; id < nbLines; id++) {
+            var line = lines.get(id);
+            var start = chunk.position();
+            if (!put(encoder, id, line, chunk)) {
+                // the rest of the chunk is left unused
+                if (nbChunks == chunks.length) {
+                    chunks = Arrays.copyOf(chunks, nbChunks * 2);
+                }
+                chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                chunks[nbChunks++] = chunk;
+                start = 0;
+                if (!put(encoder, id, line, chunk)) {
+                    throw new IllegalArgumentException("Line " + id + " longer than " + MAX_LINE_SIZE + " bytes");
+                }
+            }
+            locations[id] = (long) (nbChunks - 1) << 32 | start;
+            sizes[id] = chunk.position() - start;
+        }
+        return new PacketArena(Arrays.copyOf(chunks, nbChunks), locations, sizes);
+    }
+
+    /**
+     * Writes the packet of a line at the position of chunk.
+     *
+     * @return false if it does not fit, chunk is then unchanged
+     */
+    private static boolean put(CharsetEncoder encoder, int id, String line, ByteBuffer chunk) {
+        var start = chunk.position();
+        if (chunk.remaining() < Long.BYTES) {
+            return false;
+        }
+        chunk.putLong(id);
+        encoder.reset();
+        var chars = CharBuffer.wrap(line);
+        if (encoder.encode(chars, chunk, true).isOverflow() || encoder.flush(chunk).isOverflow()) {
+            chunk.position(start);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of packets
+     */
+    public int size() {
+        return sizes.length;
+    }
+
+    /**
+     * Returns the packet of a line, without copying it.
+     *
+     * @return a view of the packet, from position 0 to its limit, which must not be modified
+     */
+    public ByteBuffer packet(int id) {
+        Objects.checkIndex(id, sizes.length);
+        var location = locations[id];
+        return chunks[(int) (location >>> 32)].slice((int) location, sizes[id]);
+    }
+}
@@ -0,0 +1,96 @@
+package fr.upem.net.udp.nonblocking;
+
+/**
+ * Estimation of the round-trip time to a server and of the retransmission timeout to use,
+ * following RFC 6298: smoothed RTT and RTT variance updated with each sample, timeout doubled
+ * each time it expires.
+ * <p>
+ * Karn's rule is left to the caller: a sample must only be given for a request that was sent
+ * exactly once, since the reply of a retransmitted request cannot be matched with one of its
+ * emissions.
+ * <p>
+ * This class is thread-safe.
+ */
+public class RttEstimator {
+
+    private static final long NANOS_PER_MILLI = 1_000_000;
+    private static final long DEFAULT_MIN_TIMEOUT = 2;
+    private static final long MAX_TIMEOUT = 60_000;
+    // clock granularity in nanoseconds, the variance term of the timeout is never below it
+    private static final long GRANULARITY = NANOS_PER_MILLI;
+
+    private final long minTimeout;
+    private long srtt;
+    private long rttvar;
+    private boolean hasSample;
+    private long timeout;
+
+    /**
+     * @param initialTimeout the timeout in milliseconds used until the first sample
+     */
+    public RttEstimator(long initialTimeout) {
+        this(initialTimeout, DEFAULT_MIN_TIMEOUT);
+    }
+
+    /**
+     * Same as RttEstimator(initialTimeout), but the timeout is never below minTimeout. A protocol
+     * whose replies cannot be matched with their requests needs a minTimeout large enough for a
+     * reply to be late only when it is lost.
+     *
+     * @param minTimeout the smallest timeout in milliseconds
+     */
+    public RttEstimator(long initialTimeout, long minTimeout) {
+        if (initialTimeout <= 0 || minTimeout <= 0) {
+            throw new IllegalArgumentException("initialTimeout and minTimeout must be positive");
+        }
+        this.minTimeout = Math.min(minTimeout, MAX_TIMEOUT);
+        this.timeout = clamp(initialTimeout);
+    }
+
+    /**
+     * Updates the estimation with the round-trip time of a request sent only once.
+     *
+     * @param rttNanos the time between the emission of the request and the reception of its reply
+     */
+    public synchronized void addSample(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (!hasSample) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+            hasSample = true;
+        } else {
+            // alpha = 1/8, beta = 1/4
+            rttvar += (Math.abs(srtt - rttNanos) - rttvar) / 4;
+            srtt += (rttNanos - srtt) / 8;
+        }
+        var rto = srtt + Math.max(GRANULARITY, 4 * rttvar);
+        timeout = clamp((rto + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Doubles the timeout, to be called each time the timeout expires without reply.
+     */
+    public synchronized void backoff() {
+        timeout = clamp(2 * timeout);
+    }
+
+    /**
+     * @return the current retransmission timeout in milliseconds
+     */
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return the smoothed round-trip time in milliseconds, or -1 if there was no sample yet
+     */
+    public synchronized double getSmoothedRtt() {
+        return hasSample ? (double) srtt / NANOS_PER_MILLI : -1;
+    }
+
+    private long clamp(long timeout) {
+        return Math.max(minTimeout, Math.min(MAX_TIMEOUT, timeout));
+    }
+}
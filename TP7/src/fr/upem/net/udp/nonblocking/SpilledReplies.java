@@ -0,0 +1,154 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Replies to numbered lines, kept in a temporary file instead of the heap until they are all
+ * received.
+ * <p>
+ * The replies are appended to the temporary file in the order they arrive, each one preceded
+ * by its size, and the only memory used per line is the offset of its reply in the file.
+ * {@link #writeTo(Path, byte[])} then copies them in the order of the lines. The replies
+ * mostly arrive in order, so the temporary file is read almost sequentially.
+ * <p>
+ * The replies are kept as they are received, without being decoded.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class SpilledReplies implements Closeable {
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final long NONE = -1;
+
+    private final FileChannel fc;
+    // offset in the temporary file of the reply to each line, NONE if it was not received
+    private final long[] offsets;
+    // replies not written to the temporary file yet, in write mode
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long fileSize;
+
+    /**
+     * @param nbLines   the number of lines
+     * @param directory the directory of the temporary file, deleted when this object is closed
+     */
+    public SpilledReplies(int nbLines, Path directory) throws IOException {
+        var path = Files.createTempFile(directory, "replies", ".tmp");
+        this.fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        this.offsets = new long[nbLines];
+        Arrays.fill(offsets, NONE);
+    }
+
+    /**
+     * Stores the reply to a line, from the position of reply to its limit.
+     *
+     * @return false if there already was a reply to this line, which is kept
+     */
+    public boolean put(int id, ByteBuffer reply) throws IOException {
+        if (offsets[id] != NONE) {
+            return false;
+        }
+        var size = reply.remaining();
+        if (size > BUFFER_SIZE - Integer.BYTES) {
+            throw new IllegalArgumentException("Reply too large " + size);
+        }
+        if (writeBuffer.remaining() < Integer.BYTES + size) {
+            flush();
+        }
+        offsets[id] = fileSize + writeBuffer.position();
+        writeBuffer.putInt(size).put(reply);
+        return true;
+    }
+
+    /**
+     * Writes the replies to the file path in the order of the lines, each one followed by
+     * separator.
+     *
+     * @throws IllegalStateException if a reply is missing
+     */
+    public void writeTo(Path path, byte[] separator) throws IOException {
+        try (var out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTo(out, separator);
+        }
+    }
+
+    /**
+     * Same as {@link #writeTo(Path, byte[])}, but the replies are written at the position of out,
+     * after the replies already written there.
+     */
+    public void writeTo(FileChannel out, byte[] separator) throws IOException {
+        flush();
+        var readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        readBuffer.flip();
+        var readStart = 0L;
+        for (var id = 0; id < offsets.length; id++) {
+            var offset = offsets[id];
+            if (offset == NONE) {
+                throw new IllegalStateException("No reply to line " + id);
+            }
+            if (!contains(readBuffer, readStart, offset, Integer.BYTES)) {
+                readStart = offset;
+                read(readBuffer, readStart);
+            }
+            readBuffer.position((int) (offset - readStart));
+            var size = readBuffer.getInt();
+            if (!contains(readBuffer, readStart, offset + Integer.BYTES, size)) {
+                readStart = offset + Integer.BYTES;
+                read(readBuffer, readStart);
+            }
+            readBuffer.position((int) (offset + Integer.BYTES - readStart));
+            var limit = readBuffer.limit();
+            readBuffer.limit(readBuffer.position() + size);
+            if (writeBuffer.remaining() < size + separator.length) {
+                write(out, writeBuffer);
+            }
+            writeBuffer.put(readBuffer).put(separator);
+            readBuffer.limit(limit);
+        }
+        write(out, writeBuffer);
+    }
+
+    private static boolean contains(ByteBuffer buffer, long bufferStart, long offset, int size) {
+        return offset >= bufferStart && offset + size <= bufferStart + buffer.limit();
+    }
+
+    /**
+     * Fills buffer with the temporary file from offset.
+     */
+    private void read(ByteBuffer buffer, long offset) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && offset + buffer.position() < fileSize) {
+            if (fc.read(buffer, offset + buffer.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private void flush() throws IOException {
+        fileSize += writeBuffer.position();
+        write(fc, writeBuffer);
+    }
+
+    private static void write(FileChannel fc, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fc.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fc.close();
+    }
+}
@@ -0,0 +1,104 @@
+package fr.upem.net.bench;
+
+import fr.upem.net.udp.AsciiCase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uppercase of an ASCII message as done in the reply path of ServerIdUpperCaseUDP: the String
+ * round trip of the original server, a loop on the bytes, and {@link AsciiCase} (8 bytes at a
+ * time). The sizes go up to 1016 bytes, the largest message of a 1024 bytes datagram.
+ * <p>
+ * Every benchmark first copies the message in the request buffer, as the uppercase is done in
+ * place; copyOnly measures this copy alone.
+ * <p>
+ * Run with org.openjdk.jmh.Main AsciiUpperCaseBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AsciiUpperCaseBenchmark {
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    private static final int BUFFER_SIZE = 1024;
+    private static final String SAMPLE = "The quick brown fox jumps over the lazy dog, 0123456789! ";
+
+    @Param({"16", "64", "256", "1016"})
+    private int size;
+
+    private ByteBuffer message;
+    private final ByteBuffer request = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer reply = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    @Setup
+    public void setup() {
+        var text = SAMPLE.repeat(size / SAMPLE.length() + 1).substring(0, size);
+        message = ByteBuffer.allocateDirect(size);
+        message.put(text.getBytes(UTF8));
+    }
+
+    private void resetRequest() {
+        message.flip();
+        request.clear();
+        request.put(message);
+        request.flip();
+        reply.clear();
+    }
+
+    @Benchmark
+    public ByteBuffer copyOnly() {
+        resetRequest();
+        reply.put(request);
+        return reply;
+    }
+
+    @Benchmark
+    public ByteBuffer stringRoundTrip() {
+        resetRequest();
+        reply.put(UTF8.encode(UTF8.decode(request).toString().toUpperCase()));
+        return reply;
+    }
+
+    @Benchmark
+    public ByteBuffer byteLoop() {
+        resetRequest();
+        for (var i = request.position(); i < request.limit(); i++) {
+            var b = request.get(i);
+            if (b < 0) {
+                throw new AssertionError();
+            }
+            if (b >= 'a' && b <= 'z') {
+                request.put(i, (byte) (b - ('a' - 'A')));
+            }
+        }
+        reply.put(request);
+        return reply;
+    }
+
+    @Benchmark
+    public ByteBuffer swar() {
+        resetRequest();
+        if (!AsciiCase.upperCaseInPlace(request)) {
+            throw new AssertionError();
+        }
+        reply.put(request);
+        return reply;
+    }
+}
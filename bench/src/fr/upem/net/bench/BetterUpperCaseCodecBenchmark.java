@@ -0,0 +1,81 @@
+package fr.upem.net.bench;
+
+import fr.upem.net.udp.ClientBetterUpperCaseUDP;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the packets of ClientBetterUpperCaseUDP: the methods returning a new
+ * ByteBuffer or String against the overloads working in buffers given by the caller.
+ * <p>
+ * Run with org.openjdk.jmh.Main BetterUpperCaseCodecBenchmark -prof gc to see the allocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BetterUpperCaseCodecBenchmark {
+
+    private static final int MAX_PACKET_SIZE = 1024;
+
+    @Param({"UTF-8", "latin1"})
+    private String charsetName;
+
+    @Param({"Hello world caf\u00e9 cr\u00e8me", "A much longer line of text as the ones read from a file by the clients of the TP."})
+    private String message;
+
+    private ByteBuffer packet;
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(MAX_PACKET_SIZE);
+
+    @Setup
+    public void setup() {
+        packet = ClientBetterUpperCaseUDP.encodeMessage(message, charsetName).orElseThrow().flip();
+    }
+
+    // decodeMessage takes a buffer in write mode, as after a receive
+    private ByteBuffer receivedPacket() {
+        packet.rewind();
+        buffer.clear();
+        buffer.put(packet);
+        return buffer;
+    }
+
+    @Benchmark
+    public Optional<ByteBuffer> encodeNewBuffer() {
+        return ClientBetterUpperCaseUDP.encodeMessage(message, charsetName);
+    }
+
+    @Benchmark
+    public boolean encodeInBuffer() {
+        buffer.clear();
+        return ClientBetterUpperCaseUDP.encodeMessage(message, charsetName, buffer);
+    }
+
+    @Benchmark
+    public Optional<String> decodeToString() {
+        return ClientBetterUpperCaseUDP.decodeMessage(receivedPacket());
+    }
+
+    @Benchmark
+    public boolean decodeInCharBuffer() {
+        chars.clear();
+        return ClientBetterUpperCaseUDP.decodeMessage(receivedPacket(), chars);
+    }
+}
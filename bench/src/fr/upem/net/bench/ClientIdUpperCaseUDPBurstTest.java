@@ -0,0 +1,94 @@
+package fr.upem.net.bench;
+
+import fr.upem.net.udp.nonblocking.ClientIdUpperCaseUDPBurst;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class ClientIdUpperCaseUDPBurstTest {
+
+    private static final int NB_LINES = 2000;
+
+    /**
+     * Answers each packet with its id followed by its line in upper case, until interrupted.
+     */
+    private static void upperCaseServer(DatagramChannel dc) {
+        var buff = ByteBuffer.allocate(1024);
+        try {
+            for (;;) {
+                buff.clear();
+                var client = dc.receive(buff);
+                buff.flip();
+                var id = buff.getLong();
+                var line = StandardCharsets.UTF_8.decode(buff).toString().toUpperCase();
+                buff.clear();
+                buff.putLong(id).put(StandardCharsets.UTF_8.encode(line)).flip();
+                dc.send(buff, client);
+            }
+        } catch (IOException e) {
+            // closed by the interruption
+        }
+    }
+
+    private static Thread start(Runnable runnable) {
+        var thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Sends NB_LINES lines through a proxy with the given links and checks the replies.
+     *
+     * @return the client, once all the replies are received
+     */
+    private static ClientIdUpperCaseUDPBurst sendThrough(UDPProxy.Link toServer, UDPProxy.Link toClient) throws Exception {
+        var lines = new ArrayList<String>(NB_LINES);
+        for (var i = 0; i < NB_LINES; i++) {
+            lines.add("line " + i);
+        }
+        try (var serverChannel = DatagramChannel.open()) {
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+            var server = start(() -> upperCaseServer(serverChannel));
+            var proxy = new UDPProxy(0, (InetSocketAddress) serverChannel.getLocalAddress(), toServer, toClient);
+            var proxyThread = start(() -> {
+                try {
+                    proxy.serve();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            try {
+                var client = new ClientIdUpperCaseUDPBurst(lines, 200, new InetSocketAddress("localhost", proxy.getPort()));
+                var replies = client.launch();
+                for (var i = 0; i < NB_LINES; i++) {
+                    assertEquals(lines.get(i).toUpperCase(), replies[i]);
+                }
+                return client;
+            } finally {
+                proxyThread.interrupt();
+                server.interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void windowShrinksOnLossyLink() throws Exception {
+        // a link losing a line out of five, far below the overrun of a server
+        var client = sendThrough(new UDPProxy.Link(0.2, 0, 0, 5, 0, 0, Long.MAX_VALUE, 1),
+                new UDPProxy.Link(0, 0, 0, 5, 0, 0, Long.MAX_VALUE, 2));
+        assertTrue(client.getTotalRetransmissions() > 0);
+        assertTrue(client.getWindowDecreases() > 0);
+        // at most one decrease per loss event, a loss event may lose several lines
+        assertTrue(client.getWindowDecreases() <= client.getTotalRetransmissions());
+    }
+}
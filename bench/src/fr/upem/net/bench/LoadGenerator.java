@@ -0,0 +1,573 @@
+package fr.upem.net.bench;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load generator for the UDP servers of the TPs, run as a separate process against a server
+ * started on its own (the servers of TP5 and TP6 cannot share a classpath).
+ * <p>
+ * Each simulated client has its own DatagramChannel, connected to the server from its own local
+ * port, and keeps at most window requests in flight. The clients are spread over several threads,
+ * each one driving its channels with one Selector. Two modes are available:
+ * - with a rate, the requests are sent on a fixed schedule whatever the replies (open loop), each
+ * one by the next client in turn; a request is skipped if this client has no free slot<br/>
+ * - with a rate of 0, every client sends a new request as soon as one of its requests is answered
+ * or times out (closed loop), to find the maximum throughput of the server.<br/>
+ * <p>
+ * The latency of a request is measured from the time it was scheduled, so that a late sender
+ * does not hide the queueing delay (coordinated omission), and recorded in an HdrHistogram. A
+ * request without reply after {@value #REPLY_TIMEOUT_MILLIS} ms is lost; a reply arriving later
+ * is counted as late. The requests are never retransmitted.
+ * <p>
+ * The protocols are:
+ * - idUpperCase: an id and a line of text, for ServerIdUpperCaseUDP<br/>
+ * - longSum: OP packets of sessions of {@value #SESSION_SIZE} operands, for ServerLongSum<br/>
+ * - freeLongSum: same as longSum followed by a CLEAN packet once the result is received, for
+ * ServerFreeLongSumUDP<br/>
+ * - echo and echoPlus: an id and a line of text, for ServerEcho and ServerEchoMultiPort of TP6,
+ * and for ServerEchoPlus which adds 1 to every byte.<br/>
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    private static final int BUFFER_SIZE = 1024;
+    private static final long REPLY_TIMEOUT_MILLIS = 1_000;
+    private static final long REPLY_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT_MILLIS);
+    private static final long SCAN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FREE = -1;
+    private static final int SESSION_SIZE = 64;
+    private static final byte OP_CODE = 1;
+    private static final byte ACK_CODE = 2;
+    private static final byte RES_CODE = 3;
+    private static final byte CLEAN_CODE = 4;
+    private static final byte ACKCLEAN_CODE = 5;
+    private static final byte[] LINE = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    enum Protocol {
+        ID_UPPER_CASE("idUpperCase"),
+        LONG_SUM("longSum") {
+            @Override
+            void writeRequest(ByteBuffer dst, long salt, long seq) {
+                writeOp(dst, salt, seq);
+            }
+
+            @Override
+            boolean readReply(ByteBuffer src, long salt, long[] range, ByteBuffer followUp) {
+                return readLongSumReply(src, salt, range);
+            }
+        },
+        FREE_LONG_SUM("freeLongSum") {
+            @Override
+            void writeRequest(ByteBuffer dst, long salt, long seq) {
+                writeOp(dst, salt, seq);
+            }
+
+            @Override
+            boolean readReply(ByteBuffer src, long salt, long[] range, ByteBuffer followUp) {
+                if (!readLongSumReply(src, salt, range)) {
+                    return false;
+                }
+                if (range[1] - range[0] > 1) {
+                    // the result of the session is received, the server can free it
+                    followUp.put(CLEAN_CODE).putLong(salt + range[0] / SESSION_SIZE);
+                }
+                return true;
+            }
+        },
+        ECHO("echo"),
+        ECHO_PLUS("echoPlus") {
+            @Override
+            boolean readReply(ByteBuffer src, long salt, long[] range, ByteBuffer followUp) {
+                if (src.remaining() < Long.BYTES) {
+                    return false;
+                }
+                var seq = 0L;
+                for (var i = 0; i < Long.BYTES; i++) {
+                    seq = seq << 8 | ((src.get() - 1) & 0xFF);
+                }
+                range[0] = seq;
+                range[1] = seq + 1;
+                return true;
+            }
+        };
+
+        private final String name;
+
+        Protocol(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Writes the request number seq of a client in dst, in write mode.
+         *
+         * @param salt a random value drawn for each client, to have distinct sessions
+         */
+        void writeRequest(ByteBuffer dst, long salt, long seq) {
+            dst.putLong(seq).put(LINE);
+        }
+
+        /**
+         * Reads a reply received by a client.
+         *
+         * @param range filled with the first request answered and the one after the last, both
+         *              equal if the reply does not answer a request
+         * @param followUp the buffer in write mode where a packet to send back can be written
+         * @return false if the reply is invalid
+         */
+        boolean readReply(ByteBuffer src, long salt, long[] range, ByteBuffer followUp) {
+            if (src.remaining() < Long.BYTES) {
+                return false;
+            }
+            range[0] = src.getLong();
+            range[1] = range[0] + 1;
+            return true;
+        }
+
+        static Protocol forName(String name) {
+            return Arrays.stream(values())
+                    .filter(protocol -> protocol.name.equals(name))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown protocol " + name));
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static void writeOp(ByteBuffer dst, long salt, long seq) {
+        dst.put(OP_CODE)
+                .putLong(salt + seq / SESSION_SIZE)
+                .putLong(seq % SESSION_SIZE)
+                .putLong(SESSION_SIZE)
+                .putLong(seq);
+    }
+
+    private static boolean readLongSumReply(ByteBuffer src, long salt, long[] range) {
+        if (src.remaining() < Byte.BYTES + Long.BYTES) {
+            return false;
+        }
+        var code = src.get();
+        var session = src.getLong() - salt;
+        if (session < 0) {
+            return false;
+        }
+        switch (code) {
+            case ACK_CODE:
+                if (src.remaining() < Long.BYTES) {
+                    return false;
+                }
+                var idPos = src.getLong();
+                if (idPos < 0 || idPos >= SESSION_SIZE) {
+                    return false;
+                }
+                range[0] = session * SESSION_SIZE + idPos;
+                range[1] = range[0] + 1;
+                return true;
+            case RES_CODE:
+                // the sum itself is not checked, only its presence
+                if (src.remaining() < Long.BYTES) {
+                    return false;
+                }
+                // the result replaces the ACK of the last operand and answers all of them
+                range[0] = session * SESSION_SIZE;
+                range[1] = range[0] + SESSION_SIZE;
+                return true;
+            case ACKCLEAN_CODE:
+                // answers the CLEAN packet, not a request
+                range[0] = 0;
+                range[1] = 0;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Counters shared by all the workers.
+     */
+    private static class Stats {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder lost = new LongAdder();
+        private final LongAdder late = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder invalid = new LongAdder();
+    }
+
+    /**
+     * A thread driving a group of clients. The request in flight in the slot i of the client c is
+     * seqs[c * window + i], or FREE.
+     */
+    private static class Worker implements Runnable {
+        private final Protocol protocol;
+        private final int window;
+        // nanoseconds between two requests, 0 in closed loop
+        private final double interval;
+        private final Stats stats;
+        private final Recorder recorder = new Recorder(3);
+        private final Selector selector;
+        private final DatagramChannel[] channels;
+        private final long[] salts;
+        private final long[] nextSeqs;
+        private final long[] seqs;
+        private final long[] sendTimes;
+        private final ByteBuffer sendBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer receiveBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer followUp = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final long[] range = new long[2];
+        private int nextClient;
+        private int inFlight;
+        private volatile boolean sending = true;
+        private volatile long stopTime;
+
+        Worker(InetSocketAddress server, Protocol protocol, int clients, int window, double rate, Stats stats)
+                throws IOException {
+            this.protocol = protocol;
+            this.window = window;
+            this.interval = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+            this.stats = stats;
+            this.channels = new DatagramChannel[clients];
+            this.salts = new long[clients];
+            this.nextSeqs = new long[clients];
+            this.seqs = new long[clients * window];
+            this.sendTimes = new long[clients * window];
+            Arrays.fill(seqs, FREE);
+            selector = Selector.open();
+            try {
+                for (var client = 0; client < clients; client++) {
+                    var dc = DatagramChannel.open();
+                    channels[client] = dc;
+                    // binds the channel to a new ephemeral port
+                    dc.connect(server);
+                    dc.configureBlocking(false);
+                    dc.register(selector, SelectionKey.OP_READ, client);
+                    // keeps the session ids positive, see readLongSumReply
+                    salts[client] = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE / 2);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                serve();
+            } catch (IOException | UncheckedIOException e) {
+                logger.log(Level.SEVERE, "Worker stopped", e);
+            } finally {
+                stats.lost.add(inFlight);
+                close();
+            }
+        }
+
+        private void serve() throws IOException {
+            var start = System.nanoTime();
+            var scheduled = 0L;
+            var nextSend = start;
+            var nextScan = start + SCAN_INTERVAL;
+            if (interval == 0) {
+                for (var slot = 0; slot < seqs.length; slot++) {
+                    send(slot / window, slot, start);
+                }
+            }
+            for (;;) {
+                var now = System.nanoTime();
+                var isSending = sending;
+                if (!isSending && (inFlight == 0 || now - stopTime >= REPLY_TIMEOUT)) {
+                    return;
+                }
+                if (isSending && interval != 0) {
+                    while (nextSend - now <= 0) {
+                        sendScheduled(nextSend);
+                        scheduled++;
+                        nextSend = start + (long) (scheduled * interval);
+                    }
+                }
+                if (now - nextScan >= 0) {
+                    scanTimeouts(now, isSending);
+                    nextScan = now + SCAN_INTERVAL;
+                }
+                var wakeUp = isSending && interval != 0 && nextSend - nextScan < 0 ? nextSend : nextScan;
+                var wait = TimeUnit.NANOSECONDS.toMillis(wakeUp - now);
+                if (wait > 0) {
+                    selector.select(this::treatKey, wait);
+                } else {
+                    selector.selectNow(this::treatKey);
+                }
+            }
+        }
+
+        /**
+         * Stops sending new requests. The worker ends when all the requests in flight are answered
+         * or timed out.
+         */
+        void stop() {
+            stopTime = System.nanoTime();
+            sending = false;
+        }
+
+        private void sendScheduled(long scheduledTime) throws IOException {
+            var client = nextClient;
+            nextClient = (nextClient + 1) % channels.length;
+            var first = client * window;
+            for (var slot = first; slot < first + window; slot++) {
+                if (seqs[slot] == FREE) {
+                    send(client, slot, scheduledTime);
+                    return;
+                }
+            }
+            stats.skipped.increment();
+        }
+
+        private void send(int client, int slot, long scheduledTime) throws IOException {
+            var seq = nextSeqs[client]++;
+            sendBuff.clear();
+            protocol.writeRequest(sendBuff, salts[client], seq);
+            sendBuff.flip();
+            try {
+                if (channels[client].write(sendBuff) == 0) {
+                    // the send buffer of the socket is full
+                    stats.errors.increment();
+                    return;
+                }
+            } catch (PortUnreachableException e) {
+                // an ICMP error received for a previous datagram
+                stats.errors.increment();
+                return;
+            }
+            seqs[slot] = seq;
+            sendTimes[slot] = scheduledTime;
+            inFlight++;
+            stats.sent.increment();
+        }
+
+        private void treatKey(SelectionKey key) {
+            try {
+                receive((Integer) key.attachment());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void receive(int client) throws IOException {
+            var dc = channels[client];
+            for (;;) {
+                receiveBuff.clear();
+                try {
+                    if (dc.read(receiveBuff) <= 0) {
+                        return;
+                    }
+                } catch (PortUnreachableException e) {
+                    stats.errors.increment();
+                    return;
+                }
+                var now = System.nanoTime();
+                receiveBuff.flip();
+                followUp.clear();
+                if (!protocol.readReply(receiveBuff, salts[client], range, followUp)) {
+                    stats.invalid.increment();
+                    continue;
+                }
+                if (followUp.position() > 0) {
+                    followUp.flip();
+                    dc.write(followUp);
+                }
+                if (range[0] == range[1]) {
+                    continue;
+                }
+                complete(client, range[0], range[1], now);
+            }
+        }
+
+        private void complete(int client, long from, long to, long now) throws IOException {
+            var first = client * window;
+            var answered = 0;
+            for (var slot = first; slot < first + window; slot++) {
+                var seq = seqs[slot];
+                if (seq != FREE && seq >= from && seq < to) {
+                    recorder.recordValue(now - sendTimes[slot]);
+                    seqs[slot] = FREE;
+                    answered++;
+                }
+            }
+            if (answered == 0) {
+                // a reply to a request already timed out, or a duplicate
+                stats.late.increment();
+                return;
+            }
+            inFlight -= answered;
+            stats.received.add(answered);
+            if (interval == 0 && sending) {
+                // the new requests are not in [from, to), all the requests of a session are sent
+                for (var slot = first; slot < first + window; slot++) {
+                    if (seqs[slot] == FREE) {
+                        send(client, slot, now);
+                    }
+                }
+            }
+        }
+
+        private void scanTimeouts(long now, boolean isSending) throws IOException {
+            for (var slot = 0; slot < seqs.length; slot++) {
+                if (seqs[slot] != FREE && now - sendTimes[slot] >= REPLY_TIMEOUT) {
+                    seqs[slot] = FREE;
+                    inFlight--;
+                    stats.lost.increment();
+                    if (interval == 0 && isSending) {
+                        send(slot / window, slot, now);
+                    }
+                }
+            }
+        }
+
+        private void close() {
+            for (var dc : channels) {
+                if (dc != null) {
+                    try {
+                        dc.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1_000.0;
+    }
+
+    private static void printReport(PrintStream out, Stats stats, Histogram latencies, long seconds) {
+        var sent = stats.sent.sum();
+        var lost = stats.lost.sum();
+        out.printf("sent %,d (%,d req/s), received %,d (%,d rep/s)%n",
+                sent, sent / seconds, stats.received.sum(), stats.received.sum() / seconds);
+        out.printf("lost %,d (%.3f %%), late %,d, skipped %,d, errors %,d, invalid %,d%n",
+                lost, sent == 0 ? 0.0 : 100.0 * lost / sent, stats.late.sum(), stats.skipped.sum(),
+                stats.errors.sum(), stats.invalid.sum());
+        out.printf("latency (us): min %.1f", micros(latencies.getMinValue()));
+        for (var percentile : PERCENTILES) {
+            out.printf(", p%s %.1f", percentile % 1 == 0 ? String.valueOf((int) percentile) : String.valueOf(percentile),
+                    micros(latencies.getValueAtPercentile(percentile)));
+        }
+        out.printf(", max %.1f%n", micros(latencies.getMaxValue()));
+    }
+
+    public static void usage() {
+        System.out.println("Usage : LoadGenerator host port protocol clients threads window rate duration [hgrm-filename]");
+        System.out.println("  protocol: idUpperCase, longSum, freeLongSum, echo or echoPlus");
+        System.out.println("  rate: requests per second of all the clients, 0 for a closed loop");
+        System.out.println("  duration: in seconds");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 8 && args.length != 9) {
+            usage();
+            return;
+        }
+        var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        var protocol = Protocol.forName(args[2]);
+        var clients = Integer.parseInt(args[3]);
+        var threads = Integer.parseInt(args[4]);
+        var window = Integer.parseInt(args[5]);
+        var rate = Double.parseDouble(args[6]);
+        var duration = Long.parseLong(args[7]);
+        if (clients <= 0 || threads <= 0 || threads > clients || window <= 0 || rate < 0 || duration <= 0) {
+            usage();
+            return;
+        }
+
+        var stats = new Stats();
+        var workers = new ArrayList<Worker>();
+        try {
+            for (var i = 0; i < threads; i++) {
+                var workerClients = clients / threads + (i < clients % threads ? 1 : 0);
+                workers.add(new Worker(server, protocol, workerClients, window, rate * workerClients / clients, stats));
+            }
+        } catch (IOException e) {
+            // usually the limit of open files, see ulimit -n
+            logger.log(Level.SEVERE, "Cannot open " + clients + " channels", e);
+            workers.forEach(Worker::close);
+            return;
+        }
+        System.out.printf("%s on %s: %d clients, %d threads, window %d, %s%n", protocol, server, clients,
+                threads, window, rate == 0 ? "closed loop" : String.format("%,.0f req/s", rate));
+
+        var threadList = new ArrayList<Thread>();
+        for (var i = 0; i < threads; i++) {
+            var thread = new Thread(workers.get(i), "worker-" + i);
+            threadList.add(thread);
+            thread.start();
+        }
+        var total = new Histogram(3);
+        var start = System.nanoTime();
+        var previousSent = 0L;
+        var previousReceived = 0L;
+        var previousLost = 0L;
+        for (var second = 1; second <= duration; second++) {
+            TimeUnit.NANOSECONDS.sleep(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            var interval = new Histogram(3);
+            for (var worker : workers) {
+                interval.add(worker.recorder.getIntervalHistogram());
+            }
+            total.add(interval);
+            var sent = stats.sent.sum();
+            var received = stats.received.sum();
+            var lost = stats.lost.sum();
+            System.out.printf("%4d s: sent %,9d, received %,9d, lost %,7d, p50 %,9.1f us, p99 %,9.1f us, max %,9.1f us%n",
+                    second, sent - previousSent, received - previousReceived, lost - previousLost,
+                    micros(interval.getValueAtPercentile(50)), micros(interval.getValueAtPercentile(99)),
+                    micros(interval.getMaxValue()));
+            previousSent = sent;
+            previousReceived = received;
+            previousLost = lost;
+        }
+        workers.forEach(Worker::stop);
+        for (var thread : threadList) {
+            thread.join();
+        }
+        // the replies received after the end of the sending
+        for (var worker : workers) {
+            total.add(worker.recorder.getIntervalHistogram());
+        }
+
+        printReport(System.out, stats, total, duration);
+        if (args.length == 9) {
+            try (var out = new PrintStream(Files.newOutputStream(Path.of(args[8])))) {
+                total.outputPercentileDistribution(out, 1_000.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package fr.upem.net.bench;
+
+import fr.upem.net.udp.ServerLongSum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reception of all the operands of a session by ServerLongSum.ClientData, one operand at a time
+ * (OP packets) in order or shuffled, or by ranges of 124 operands (OPS packets). The time is
+ * given per session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LongSumBenchmark {
+
+    // number of operands of an OPS packet of 1024 bytes
+    private static final int OPS_COUNT = 124;
+
+    @Param({"1024", "1048576"})
+    private int totalOper;
+
+    private long[] inOrder;
+    private long[] shuffled;
+    private ByteBuffer values;
+
+    @Setup
+    public void setup() {
+        var random = new Random(0);
+        inOrder = new long[totalOper];
+        shuffled = new long[totalOper];
+        for (var i = 0; i < totalOper; i++) {
+            inOrder[i] = i;
+            shuffled[i] = i;
+        }
+        for (var i = totalOper - 1; i > 0; i--) {
+            var j = random.nextInt(i + 1);
+            var tmp = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = tmp;
+        }
+        values = ByteBuffer.allocateDirect(OPS_COUNT * Long.BYTES);
+        while (values.hasRemaining()) {
+            values.putLong(random.nextLong());
+        }
+    }
+
+    private long fill(long[] positions) {
+        var cd = new ServerLongSum.ClientData(totalOper);
+        for (var pos : positions) {
+            cd.update(pos * 31, pos);
+        }
+        return cd.getTotal();
+    }
+
+    @Benchmark
+    public long opInOrder() {
+        return fill(inOrder);
+    }
+
+    @Benchmark
+    public long opShuffled() {
+        return fill(shuffled);
+    }
+
+    @Benchmark
+    public long opsRanges() {
+        var cd = new ServerLongSum.ClientData(totalOper);
+        for (long first = 0; first < totalOper; first += OPS_COUNT) {
+            values.clear();
+            cd.update(values, first, (int) Math.min(OPS_COUNT, totalOper - first));
+        }
+        return cd.getTotal();
+    }
+}
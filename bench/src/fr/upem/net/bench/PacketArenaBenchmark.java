@@ -0,0 +1,114 @@
+package fr.upem.net.bench;
+
+import fr.upem.net.udp.nonblocking.PacketArena;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of a retransmission round of the burst clients, where every line of the file is
+ * made into a packet again, without the cost of the system calls.
+ * <p>
+ * The encode round is what the clients did before {@link PacketArena}: the line is encoded by
+ * UTF8.encode and copied with its id in the send buffer. The arena round only takes the view of
+ * each pre-encoded packet, which is what the clients now give to send, and the copy round also
+ * copies it in a send buffer.
+ * <p>
+ * Run with org.openjdk.jmh.Main PacketArenaBenchmark -prof gc to see that the arena rounds do
+ * not allocate anything but the views.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PacketArenaBenchmark {
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    private static final int BUFFER_SIZE = 1024;
+
+    @Param({"1000000"})
+    private int nbLines;
+
+    @Param({"ascii", "latin"})
+    private String text;
+
+    private List<String> lines;
+    private PacketArena arena;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    @Setup
+    public void setup() {
+        String sample;
+        switch (text) {
+            case "ascii":
+                sample = "The quick brown fox jumps over the lazy dog. ";
+                break;
+            case "latin":
+                sample = "Le c\u0153ur d\u00e9\u00e7u mais l'\u00e2me plut\u00f4t na\u00efve, Lou\u00ffs r\u00eava de crapa\u00fcter. ";
+                break;
+            default:
+                throw new IllegalArgumentException(text);
+        }
+        var repeated = sample.repeat(4);
+        var random = new Random(0);
+        lines = new ArrayList<>(nbLines);
+        for (var i = 0; i < nbLines; i++) {
+            // lines of 20 to 120 chars
+            var start = random.nextInt(sample.length());
+            lines.add(repeated.substring(start, start + 20 + random.nextInt(100)));
+        }
+        arena = PacketArena.encode(lines);
+    }
+
+    @Benchmark
+    public long encodeRound() {
+        var total = 0L;
+        for (var id = 0; id < nbLines; id++) {
+            sendBuffer.clear();
+            sendBuffer.putLong(id);
+            sendBuffer.put(UTF8.encode(lines.get(id)));
+            sendBuffer.flip();
+            total += sendBuffer.remaining();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long arenaRound() {
+        var total = 0L;
+        for (var id = 0; id < nbLines; id++) {
+            total += arena.packet(id).remaining();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long arenaCopyRound() {
+        var total = 0L;
+        for (var id = 0; id < nbLines; id++) {
+            sendBuffer.clear();
+            sendBuffer.put(arena.packet(id));
+            sendBuffer.flip();
+            total += sendBuffer.remaining();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,195 @@
+package fr.upem.net.bench;
+
+import fr.upem.net.udp.ServerFreeLongSumUDP;
+import fr.upem.net.udp.ServerIdUpperCaseUDP;
+import fr.upem.net.udp.ServerLongSum;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end throughput of the TP5 servers on the loopback interface.
+ * <p>
+ * The server runs in a thread of the benchmark JVM. Each benchmark thread is a client that sends
+ * {@value #WINDOW} requests, then waits for their replies: ServerIdUpperCaseUDP gets lines of
+ * text, and the long sum servers get the {@value #WINDOW} OP packets of a new session. The
+ * score is the number of requests per second; the replies counter gives the replies actually
+ * received and the timeouts counter the windows where some replies were lost.
+ * <p>
+ * Run with org.openjdk.jmh.Main ServerLoopbackBenchmark -t 4 to have several clients, and with
+ * -prof gc to see the allocations of the server and the clients.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerLoopbackBenchmark {
+
+    private static final int WINDOW = 32;
+    private static final int BUFFER_SIZE = 1024;
+    private static final long REPLY_TIMEOUT = 100;
+    private static final byte OP_CODE = 1;
+    private static final byte[] LINE = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"idUpperCase", "idUpperCaseBatched", "longSum", "longSumBatched",
+            "freeLongSum", "freeLongSumBatched", "freeLongSumNonBlocking"})
+    private String server;
+
+    private InetSocketAddress serverAddress;
+    private boolean longSum;
+    private Thread serverThread;
+
+    private interface Server {
+        void serve() throws IOException;
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        int port;
+        try (var dc = DatagramChannel.open()) {
+            dc.bind(new InetSocketAddress(0));
+            port = ((InetSocketAddress) dc.getLocalAddress()).getPort();
+        }
+        serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        longSum = !server.startsWith("idUpperCase");
+        Server instance;
+        switch (server) {
+            case "idUpperCase":
+                instance = new ServerIdUpperCaseUDP(port)::serve;
+                break;
+            case "idUpperCaseBatched":
+                instance = new ServerIdUpperCaseUDP(port)::serveBatched;
+                break;
+            case "longSum":
+                instance = new ServerLongSum(port)::serve;
+                break;
+            case "longSumBatched":
+                instance = new ServerLongSum(port)::serveBatched;
+                break;
+            case "freeLongSum":
+                instance = new ServerFreeLongSumUDP(port)::serve;
+                break;
+            case "freeLongSumBatched":
+                instance = new ServerFreeLongSumUDP(port)::serveBatched;
+                break;
+            case "freeLongSumNonBlocking":
+                instance = new fr.upem.net.udp.nonblocking.ServerFreeLongSumUDP(port)::serve;
+                break;
+            default:
+                throw new IllegalArgumentException(server);
+        }
+        serverThread = new Thread(() -> {
+            try {
+                instance.serve();
+            } catch (IOException e) {
+                // the channel is closed when the thread is interrupted
+            }
+        }, "server-" + server);
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws InterruptedException {
+        serverThread.interrupt();
+        serverThread.join(1_000);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Client {
+        public long replies;
+        public long timeouts;
+
+        private DatagramChannel dc;
+        private Selector selector;
+        private final ByteBuffer request = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer reply = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long sessionId;
+
+        @Setup(Level.Trial)
+        public void open(ServerLoopbackBenchmark benchmark) throws IOException {
+            dc = DatagramChannel.open();
+            dc.connect(benchmark.serverAddress);
+            dc.configureBlocking(false);
+            selector = Selector.open();
+            dc.register(selector, SelectionKey.OP_READ);
+            sessionId = ThreadLocalRandom.current().nextLong();
+        }
+
+        @Setup(Level.Iteration)
+        public void resetCounters() {
+            replies = 0;
+            timeouts = 0;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            selector.close();
+            dc.close();
+        }
+
+        void sendWindow(boolean longSum) throws IOException {
+            sessionId++;
+            for (var i = 0; i < WINDOW; i++) {
+                request.clear();
+                if (longSum) {
+                    request.put(OP_CODE).putLong(sessionId).putLong(i).putLong(WINDOW).putLong(i);
+                } else {
+                    request.putLong(i).put(LINE);
+                }
+                request.flip();
+                dc.write(request);
+            }
+        }
+
+        void receiveWindow() throws IOException {
+            var received = 0;
+            while (received < WINDOW) {
+                if (selector.select(REPLY_TIMEOUT) == 0) {
+                    timeouts++;
+                    return;
+                }
+                selector.selectedKeys().clear();
+                reply.clear();
+                while (dc.read(reply) > 0) {
+                    received++;
+                    replies++;
+                    reply.clear();
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public void window(Client client) throws IOException {
+        client.sendWindow(longSum);
+        client.receiveWindow();
+    }
+}
@@ -0,0 +1,86 @@
+package fr.upem.net.bench;
+
+import fr.upem.net.udp.SessionTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup of the session of a packet in SessionTable, against the map of maps
+ * HashMap&lt;InetSocketAddress, HashMap&lt;Long, T&gt;&gt; used by the first version of
+ * ServerLongSum, which boxes the session id of every lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionTableBenchmark {
+
+    private static final int NB_LOOKUPS = 1024;
+
+    @Param({"16", "4096", "262144"})
+    private int nbSessions;
+
+    private InetSocketAddress[] addresses;
+    private long[] sessionIds;
+    private final SessionTable<Object> table = new SessionTable<>();
+    private final HashMap<InetSocketAddress, HashMap<Long, Object>> maps = new HashMap<>();
+    private int[] lookups;
+
+    @Setup
+    public void setup() {
+        var random = new Random(0);
+        addresses = new InetSocketAddress[nbSessions];
+        sessionIds = new long[nbSessions];
+        for (var i = 0; i < nbSessions; i++) {
+            // a few sessions per client, as with the clients that reuse their port
+            addresses[i] = new InetSocketAddress("127.0.0.1", 1024 + i / 4);
+            sessionIds[i] = random.nextLong();
+            var value = new Object();
+            table.put(addresses[i], sessionIds[i], value);
+            maps.computeIfAbsent(addresses[i], __ -> new HashMap<>()).put(sessionIds[i], value);
+        }
+        lookups = random.ints(NB_LOOKUPS, 0, nbSessions).toArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_LOOKUPS)
+    public int sessionTable() {
+        var found = 0;
+        for (var i : lookups) {
+            if (table.get(addresses[i], sessionIds[i]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_LOOKUPS)
+    public int hashMapOfHashMaps() {
+        var found = 0;
+        for (var i : lookups) {
+            var sessions = maps.get(addresses[i]);
+            if (sessions != null && sessions.get(sessionIds[i]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
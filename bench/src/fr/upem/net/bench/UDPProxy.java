@@ -0,0 +1,528 @@
+package fr.upem.net.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * UDP proxy degrading the traffic between clients and a server, to measure the retransmission
+ * and windowing of the clients on a single machine. It replaces the UDPProxy.jar of TP3 and TP4.
+ * <p>
+ * The proxy listens on a port and forwards the packets of each client to the server through a
+ * channel of its own, so that the replies of the server can be sent back to the right client.
+ * Both directions go through a {@link Link} that can:
+ * - drop a packet<br/>
+ * - duplicate a packet<br/>
+ * - delay a packet by a fixed time plus a random jitter<br/>
+ * - reorder a packet, by delaying it {@value #REORDER_DELAY_MILLIS} ms more than the others<br/>
+ * - limit the bandwidth, the packets waiting for the link in a queue of limited size.<br/>
+ * <p>
+ * The random decisions of each link are drawn from a Random created with a seed, so the same
+ * packets sent in the same order are treated the same way from one run to the next. All the
+ * channels are driven by one thread with a Selector; as the selector waits with a millisecond
+ * precision, a delayed packet may be sent up to 1 ms late.
+ * <p>
+ * The proxy can run in its own process, see {@link #main(String[])}, or in a thread of a test,
+ * which then reads the counters of the links.
+ */
+public class UDPProxy {
+
+    private static final Logger logger = Logger.getLogger(UDPProxy.class.getName());
+    private static final int BUFFER_SIZE = 65_536;
+    private static final int PENDING_SIZE = 1_024;
+    private static final long REORDER_DELAY_MILLIS = 10;
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+    private static final long LOG_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * One direction of the proxy, with its impairments and its counters.
+     * <p>
+     * This class is not thread-safe, except for the counters which can be read by any thread.
+     */
+    public static class Link {
+        private final double loss;
+        private final double duplication;
+        private final double reordering;
+        private final long delay;
+        private final long jitter;
+        private final long bandwidth;
+        private final long queueSize;
+        private final Random random;
+        // end of the transmission of the last packet accepted on the link, if bandwidth > 0
+        private long linkFreeTime;
+        private long queuedBytes;
+
+        private volatile long received;
+        private volatile long forwarded;
+        private volatile long dropped;
+        private volatile long duplicated;
+        private volatile long reordered;
+        private volatile long overflowed;
+
+        /**
+         * @param loss the probability to drop a packet
+         * @param duplication the probability to send a packet twice
+         * @param reordering the probability to delay a packet more than the others
+         * @param delayMillis the delay of all the packets, in milliseconds
+         * @param jitterMillis the maximum random delay added to delayMillis, in milliseconds
+         * @param bandwidth the bandwidth of the link in bytes per second, 0 for no limit
+         * @param queueSize the maximum number of bytes waiting for the link, the packets arriving
+         *                  when the queue is full are dropped
+         * @param seed the seed of the random decisions
+         */
+        public Link(double loss, double duplication, double reordering, long delayMillis, long jitterMillis,
+                    long bandwidth, long queueSize, long seed) {
+            if (loss < 0 || loss > 1 || duplication < 0 || duplication > 1 || reordering < 0 || reordering > 1) {
+                throw new IllegalArgumentException("probabilities must be between 0.0 and 1.0");
+            }
+            if (delayMillis < 0 || jitterMillis < 0 || bandwidth < 0 || queueSize <= 0) {
+                throw new IllegalArgumentException("delays, bandwidth and queue size must be positive");
+            }
+            this.loss = loss;
+            this.duplication = duplication;
+            this.reordering = reordering;
+            this.delay = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            this.jitter = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+            this.bandwidth = bandwidth;
+            this.queueSize = queueSize;
+            this.random = new Random(seed);
+        }
+
+        /**
+         * @return a link that forwards all the packets immediately
+         */
+        public static Link perfect() {
+            return new Link(0, 0, 0, 0, 0, 0, Long.MAX_VALUE, 0);
+        }
+
+        /**
+         * Decides the fate of a packet of size bytes arriving at now.
+         *
+         * @param sendTimes filled with the times at which the packet must be sent
+         * @return the number of copies of the packet to send, 0 if it is dropped
+         */
+        int schedule(int size, long now, long[] sendTimes) {
+            received++;
+            // the draws are always done, so that a decision does not depend on the other ones
+            var drop = random.nextDouble() < loss;
+            var copies = random.nextDouble() < duplication ? 2 : 1;
+            var reorder = random.nextDouble() < reordering;
+            var extra = jitter == 0 ? 0 : (long) (random.nextDouble() * jitter);
+            if (drop) {
+                dropped++;
+                return 0;
+            }
+            var departure = now;
+            if (bandwidth > 0) {
+                if (queuedBytes + (long) size * copies > queueSize) {
+                    overflowed++;
+                    return 0;
+                }
+                queuedBytes += (long) size * copies;
+                if (linkFreeTime - now < 0) {
+                    // the link is idle
+                    linkFreeTime = now;
+                }
+                linkFreeTime += transmissionTime(size) * copies;
+                departure = linkFreeTime;
+            }
+            departure += delay + extra;
+            if (reorder) {
+                reordered++;
+                departure += TimeUnit.MILLISECONDS.toNanos(REORDER_DELAY_MILLIS);
+            }
+            if (copies == 2) {
+                duplicated++;
+            }
+            for (var i = 0; i < copies; i++) {
+                sendTimes[i] = departure;
+            }
+            return copies;
+        }
+
+        /**
+         * Called when a packet scheduled by this link is sent.
+         */
+        void sent(int size) {
+            if (bandwidth > 0) {
+                queuedBytes -= size;
+            }
+            forwarded++;
+        }
+
+        boolean isImmediate() {
+            return delay == 0 && jitter == 0 && reordering == 0 && bandwidth == 0;
+        }
+
+        private long transmissionTime(int size) {
+            return TimeUnit.SECONDS.toNanos(size) / bandwidth;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        public long getForwarded() {
+            return forwarded;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        public long getDuplicated() {
+            return duplicated;
+        }
+
+        public long getReordered() {
+            return reordered;
+        }
+
+        /**
+         * @return the number of packets dropped because the queue of the link was full
+         */
+        public long getOverflowed() {
+            return overflowed;
+        }
+
+        @Override
+        public String toString() {
+            return "received " + received + ", forwarded " + forwarded + ", dropped " + dropped
+                    + ", duplicated " + duplicated + ", reordered " + reordered + ", overflowed " + overflowed;
+        }
+    }
+
+    /**
+     * A packet waiting for its send time. The packets sent at the same time keep their order.
+     */
+    private static class Pending implements Comparable<Pending> {
+        private long sendTime;
+        private long order;
+        // reallocated for larger packets, most packets are smaller than PENDING_SIZE
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(PENDING_SIZE);
+        private Link link;
+        // the channel to send the packet with, and its destination for the listening channel
+        private DatagramChannel channel;
+        private SocketAddress destination;
+
+        @Override
+        public int compareTo(Pending pending) {
+            var compare = Long.compare(sendTime - pending.sendTime, 0);
+            return compare != 0 ? compare : Long.compare(order, pending.order);
+        }
+    }
+
+    /**
+     * The channel forwarding the packets of a client to the server.
+     */
+    private static class Upstream {
+        private final InetSocketAddress client;
+        private final DatagramChannel dc;
+        private long lastActivity;
+
+        Upstream(InetSocketAddress client, DatagramChannel dc) {
+            this.client = client;
+            this.dc = dc;
+        }
+    }
+
+    private final InetSocketAddress server;
+    private final Link toServer;
+    private final Link toClient;
+    private final DatagramChannel dc;
+    private final Selector selector;
+    private final HashMap<InetSocketAddress, Upstream> upstreams = new HashMap<>();
+    private final PriorityQueue<Pending> pendings = new PriorityQueue<>();
+    private final ArrayDeque<Pending> freePendings = new ArrayDeque<>();
+    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final long[] sendTimes = new long[2];
+    private long nextOrder;
+
+    /**
+     * @param port the port where the clients send their packets, 0 for an ephemeral port
+     * @param server the address of the server
+     * @param toServer the link from the clients to the server
+     * @param toClient the link from the server to the clients
+     * @throws IOException
+     */
+    public UDPProxy(int port, InetSocketAddress server, Link toServer, Link toClient) throws IOException {
+        this.server = server;
+        this.toServer = toServer;
+        this.toClient = toClient;
+        dc = DatagramChannel.open();
+        dc.bind(new InetSocketAddress(port));
+        dc.configureBlocking(false);
+        selector = Selector.open();
+        dc.register(selector, SelectionKey.OP_READ);
+        logger.info("UDPProxy started on port " + getPort() + " for " + server);
+    }
+
+    /**
+     * @return the port where the clients send their packets
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) dc.getLocalAddress()).getPort();
+    }
+
+    public Link getToServer() {
+        return toServer;
+    }
+
+    public Link getToClient() {
+        return toClient;
+    }
+
+    /**
+     * Forwards the packets until the thread is interrupted, then closes all the channels.
+     *
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        var nextLog = System.nanoTime() + LOG_INTERVAL;
+        try {
+            while (!Thread.interrupted()) {
+                var now = System.nanoTime();
+                sendPendings(now);
+                if (now - nextLog >= 0) {
+                    closeIdleUpstreams(now);
+                    logger.info("to server: " + toServer + "; to clients: " + toClient);
+                    nextLog = now + LOG_INTERVAL;
+                }
+                var wakeUp = nextLog;
+                if (!pendings.isEmpty() && pendings.peek().sendTime - nextLog < 0) {
+                    wakeUp = pendings.peek().sendTime;
+                }
+                // rounded up, so that the packets are never sent early
+                var timeout = TimeUnit.NANOSECONDS.toMillis(wakeUp - now + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+                if (timeout > 0) {
+                    selector.select(this::treatKey, timeout);
+                } else {
+                    selector.selectNow(this::treatKey);
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            logger.info("UDPProxy interrupted");
+        } finally {
+            for (var upstream : upstreams.values()) {
+                upstream.dc.close();
+            }
+            selector.close();
+            dc.close();
+        }
+    }
+
+    private void treatKey(SelectionKey key) {
+        try {
+            if (key.channel() == dc) {
+                receiveFromClients();
+            } else {
+                receiveFromServer((Upstream) key.attachment());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void receiveFromClients() throws IOException {
+        for (;;) {
+            buff.clear();
+            var client = (InetSocketAddress) dc.receive(buff);
+            if (client == null) {
+                return;
+            }
+            buff.flip();
+            var upstream = upstreams.get(client);
+            if (upstream == null) {
+                var channel = DatagramChannel.open();
+                channel.connect(server);
+                channel.configureBlocking(false);
+                upstream = new Upstream(client, channel);
+                channel.register(selector, SelectionKey.OP_READ, upstream);
+                upstreams.put(client, upstream);
+            }
+            var now = System.nanoTime();
+            upstream.lastActivity = now;
+            forward(toServer, upstream.dc, null, now);
+        }
+    }
+
+    private void receiveFromServer(Upstream upstream) throws IOException {
+        for (;;) {
+            buff.clear();
+            try {
+                if (upstream.dc.read(buff) <= 0) {
+                    return;
+                }
+            } catch (PortUnreachableException e) {
+                // the server is not started yet, or was stopped
+                return;
+            }
+            buff.flip();
+            var now = System.nanoTime();
+            upstream.lastActivity = now;
+            forward(toClient, dc, upstream.client, now);
+        }
+    }
+
+    /**
+     * Sends the packet in buff through link, now or later.
+     *
+     * @param destination the destination of the packet, null if channel is connected
+     */
+    private void forward(Link link, DatagramChannel channel, SocketAddress destination, long now) throws IOException {
+        var size = buff.remaining();
+        var copies = link.schedule(size, now, sendTimes);
+        if (copies == 0) {
+            return;
+        }
+        if (link.isImmediate()) {
+            for (var i = 0; i < copies; i++) {
+                send(channel, destination, buff.duplicate());
+                link.sent(size);
+            }
+            return;
+        }
+        for (var i = 0; i < copies; i++) {
+            var pending = freePendings.isEmpty() ? new Pending() : freePendings.poll();
+            pending.sendTime = sendTimes[i];
+            pending.order = nextOrder++;
+            if (pending.buffer.capacity() < size) {
+                pending.buffer = ByteBuffer.allocateDirect(size);
+            }
+            pending.buffer.clear();
+            pending.buffer.put(buff.duplicate());
+            pending.buffer.flip();
+            pending.link = link;
+            pending.channel = channel;
+            pending.destination = destination;
+            pendings.add(pending);
+        }
+    }
+
+    private void sendPendings(long now) throws IOException {
+        while (!pendings.isEmpty() && pendings.peek().sendTime - now <= 0) {
+            var pending = pendings.poll();
+            var size = pending.buffer.remaining();
+            // the channel of a client may have been closed while the packet was waiting
+            if (pending.channel.isOpen()) {
+                send(pending.channel, pending.destination, pending.buffer);
+            }
+            pending.link.sent(size);
+            pending.channel = null;
+            pending.destination = null;
+            freePendings.add(pending);
+        }
+    }
+
+    private static void send(DatagramChannel channel, SocketAddress destination, ByteBuffer packet) throws IOException {
+        try {
+            // a packet that does not fit in the send buffer of the socket is lost, as on a real network
+            if (destination == null) {
+                channel.write(packet);
+            } else {
+                channel.send(packet, destination);
+            }
+        } catch (PortUnreachableException e) {
+            // the server is not started yet, or was stopped
+        }
+    }
+
+    private void closeIdleUpstreams(long now) throws IOException {
+        var iterator = upstreams.values().iterator();
+        while (iterator.hasNext()) {
+            var upstream = iterator.next();
+            if (now - upstream.lastActivity >= IDLE_TIMEOUT) {
+                upstream.dc.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    public static void usage() {
+        System.out.println("Usage : UDPProxy [options] port1 address port2");
+        System.out.println("The proxy listens on UDP port1 and forwards to address:port2, in both directions:");
+        System.out.println("  -seed long: seed of the random decisions (default 0)");
+        System.out.println("  -loss float: probability to drop a packet (default 0.0)");
+        System.out.println("  -dup float: probability to duplicate a packet (default 0.0)");
+        System.out.println("  -reorder float: probability to delay a packet " + REORDER_DELAY_MILLIS
+                + " ms more than the others (default 0.0)");
+        System.out.println("  -delay ms: delay of every packet (default 0)");
+        System.out.println("  -jitter ms: maximum random delay added to every packet (default 0)");
+        System.out.println("  -bandwidth bytes/s: bandwidth of the link, 0 for no limit (default 0)");
+        System.out.println("  -queue bytes: size of the queue of the link when its bandwidth is limited (default 65536)");
+    }
+
+    public static void main(String[] args) throws IOException {
+        var seed = 0L;
+        var loss = 0.0;
+        var duplication = 0.0;
+        var reordering = 0.0;
+        var delay = 0L;
+        var jitter = 0L;
+        var bandwidth = 0L;
+        var queueSize = 65_536L;
+        var i = 0;
+        try {
+            for (; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+                var value = args[i + 1];
+                switch (args[i]) {
+                    case "-seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "-loss":
+                        loss = Double.parseDouble(value);
+                        break;
+                    case "-dup":
+                        duplication = Double.parseDouble(value);
+                        break;
+                    case "-reorder":
+                        reordering = Double.parseDouble(value);
+                        break;
+                    case "-delay":
+                        delay = Long.parseLong(value);
+                        break;
+                    case "-jitter":
+                        jitter = Long.parseLong(value);
+                        break;
+                    case "-bandwidth":
+                        bandwidth = Long.parseLong(value);
+                        break;
+                    case "-queue":
+                        queueSize = Long.parseLong(value);
+                        break;
+                    default:
+                        System.out.println("Unrecognized option : " + args[i]);
+                        usage();
+                        return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value : " + args[i + 1]);
+            usage();
+            return;
+        }
+        if (args.length - i != 3) {
+            usage();
+            return;
+        }
+        var port = Integer.parseInt(args[i]);
+        var server = new InetSocketAddress(args[i + 1], Integer.parseInt(args[i + 2]));
+        // distinct seeds, so that the two directions do not take the same decisions
+        var toServer = new Link(loss, duplication, reordering, delay, jitter, bandwidth, queueSize, seed);
+        var toClient = new Link(loss, duplication, reordering, delay, jitter, bandwidth, queueSize, ~seed);
+        new UDPProxy(port, server, toServer, toClient).serve();
+    }
+}
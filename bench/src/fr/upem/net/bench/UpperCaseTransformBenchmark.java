@@ -0,0 +1,97 @@
+package fr.upem.net.bench;
+
+import fr.upem.net.udp.UpperCaseTransform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reply path of ServerIdUpperCaseUDP: {@link UpperCaseTransform} against the String round trip
+ * of the original server, for ASCII text, accented latin text (the decoder and encoder fallback)
+ * and German text with sharp s (the String.toUpperCase fallback).
+ * <p>
+ * Run with org.openjdk.jmh.Main UpperCaseTransformBenchmark -prof gc to see the allocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UpperCaseTransformBenchmark {
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    private static final int BUFFER_SIZE = 1024;
+
+    @Param({"ascii", "latin", "special"})
+    private String text;
+
+    @Param({"64", "1016"})
+    private int size;
+
+    private ByteBuffer message;
+    private final ByteBuffer request = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer reply = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final UpperCaseTransform transform = new UpperCaseTransform(BUFFER_SIZE);
+
+    @Setup
+    public void setup() {
+        String sample;
+        switch (text) {
+            case "ascii":
+                sample = "The quick brown fox jumps over the lazy dog. ";
+                break;
+            case "latin":
+                sample = "Le c\u0153ur d\u00e9\u00e7u mais l'\u00e2me plut\u00f4t na\u00efve, Lou\u00ffs r\u00eava de crapa\u00fcter. ";
+                break;
+            case "special":
+                sample = "Zw\u00f6lf gro\u00dfe Boxk\u00e4mpfer jagen Viktor quer \u00fcber den Sylter Deich. ";
+                break;
+            default:
+                throw new IllegalArgumentException(text);
+        }
+        var bytes = sample.repeat(size).getBytes(UTF8);
+        // cut on a char boundary
+        var length = size;
+        while ((bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        message = ByteBuffer.allocateDirect(length);
+        message.put(bytes, 0, length);
+    }
+
+    private void resetRequest() {
+        message.flip();
+        request.clear();
+        request.put(message);
+        request.flip();
+        reply.clear();
+    }
+
+    @Benchmark
+    public ByteBuffer stringRoundTrip() {
+        resetRequest();
+        reply.put(UTF8.encode(UTF8.decode(request).toString().toUpperCase()));
+        return reply;
+    }
+
+    @Benchmark
+    public ByteBuffer transform() {
+        resetRequest();
+        transform.upperCase(request, reply);
+        return reply;
+    }
+}